@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+/**
+ *
+ * 从内存中的byte数组读取RDB数据, 用于延迟解析已经读出来的value
+ *
+ */
+public class ArrayRDBInput extends RDBInput {
+
+    private final byte[] buf;
+
+    private final int start;
+
+    private final int end;
+
+    private int pos;
+
+    /* 不为null时计算经过的所有字节的校验和 */
+    private CRC64 checksum;
+
+    /* 这个位置之前的字节已经计入校验和 */
+    private int crcMark;
+
+    public ArrayRDBInput(byte[] buf) {
+        this(buf, 0, buf.length);
+    }
+
+    public ArrayRDBInput(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.start = offset;
+        this.end = offset + length;
+        this.pos = offset;
+    }
+
+    @Override
+    public boolean readBytes(byte[] b, int off, int num) {
+        if (num < 0) {
+            throw new IllegalArgumentException("Num must bigger than zero");
+        }
+        if (num > end - pos) {
+            return false;
+        }
+        System.arraycopy(buf, pos, b, off, num);
+        pos += num;
+        return true;
+    }
+
+    @Override
+    public int read() {
+        if (pos >= end) {
+            return -1;
+        }
+        return buf[pos++] & 0x00ff;
+    }
+
+    @Override
+    public boolean skip(long n) {
+        if (n > end - pos) {
+            return false;
+        }
+        pos += (int) n;
+        return true;
+    }
+
+    @Override
+    public long position() {
+        return pos - start;
+    }
+
+    @Override
+    public boolean setChecksum(CRC64 crc) {
+        checksum = crc;
+        crcMark = pos;
+        return true;
+    }
+
+    @Override
+    public long getChecksum() {
+        if (checksum == null) {
+            return 0;
+        }
+        checksum.update(buf, crcMark, pos - crcMark);
+        crcMark = pos;
+        return checksum.getValue();
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ *
+ * 不做字符集转换的二进制字符串, 可以是某个byte数组的一段
+ * 实现了equals和hashCode, 可以作为HashMap和HashSet的元素
+ *
+ */
+public final class ByteString implements Comparable<ByteString> {
+
+    private final byte[] buf;
+
+    private final int offset;
+
+    private final int length;
+
+    private int hash;
+
+    public ByteString(byte[] buf) {
+        this(buf, 0, buf.length);
+    }
+
+    public ByteString(byte[] buf, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buf.length) {
+            throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length);
+        }
+        this.buf = buf;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public byte byteAt(int i) {
+        if (i < 0 || i >= length) {
+            throw new IndexOutOfBoundsException("index: " + i);
+        }
+        return buf[offset + i];
+    }
+
+    /* 底层的byte数组, 数据从offset()开始, 共length()个字节, 不要修改 */
+    public byte[] array() {
+        return buf;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    /* 复制出一个新的byte数组 */
+    public byte[] toByteArray() {
+        byte[] b = new byte[length];
+        System.arraycopy(buf, offset, b, 0, length);
+        return b;
+    }
+
+    /* 使用ParseRDB.CHARSET转换, 和ParseRDB解析String的方式一致 */
+    @Override
+    public String toString() {
+        return new String(buf, offset, length, ParseRDB.CHARSET);
+    }
+
+    public String toString(String charsetName) throws UnsupportedEncodingException {
+        return new String(buf, offset, length, charsetName);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0 && length > 0) {
+            for (int i = offset; i < offset + length; i++) {
+                h = 31 * h + buf[i];
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ByteString)) {
+            return false;
+        }
+        ByteString o = (ByteString) obj;
+        if (o.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buf[offset + i] != o.buf[o.offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* 按无符号字节逐个比较, 和redis中的memcmp一致 */
+    @Override
+    public int compareTo(ByteString o) {
+        int n = Math.min(length, o.length);
+        for (int i = 0; i < n; i++) {
+            int a = buf[offset + i] & 0x00ff;
+            int b = o.buf[o.offset + i] & 0x00ff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return length - o.length;
+    }
+}
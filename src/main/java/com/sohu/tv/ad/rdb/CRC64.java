@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ *
+ * redis使用的CRC64校验(Jones多项式, reflected, 初始值为0), RDB版本5开始在EOF后面保存8字节的校验和(little endian)
+ * crc64("123456789") = 0xe9c6d914c4b8d9ca
+ * 使用slicing-by-8, 每次处理8个字节, 解析时边读边校验的开销只有几个百分点
+ *
+ */
+public final class CRC64 implements Checksum {
+
+    /* 0xad93d23594c935a9按位反转 */
+    private static final long POLY = 0x95AC9329AC4BC9B5L;
+
+    private static final long[] TABLE = new long[256];
+
+    /* slicing-by-8的查找表, T[k][n]相当于字节n后面再跟k个0字节 */
+    private static final long[] T1 = new long[256];
+    private static final long[] T2 = new long[256];
+    private static final long[] T3 = new long[256];
+    private static final long[] T4 = new long[256];
+    private static final long[] T5 = new long[256];
+    private static final long[] T6 = new long[256];
+    private static final long[] T7 = new long[256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            long c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ POLY : c >>> 1;
+            }
+            TABLE[n] = c;
+        }
+        long[][] t = { TABLE, T1, T2, T3, T4, T5, T6, T7 };
+        for (int k = 1; k < 8; k++) {
+            for (int n = 0; n < 256; n++) {
+                long c = t[k - 1][n];
+                t[k][n] = (c >>> 8) ^ TABLE[(int) c & 0xff];
+            }
+        }
+    }
+
+    private long crc;
+
+    @Override
+    public void update(int b) {
+        crc = TABLE[(int) (crc ^ b) & 0xff] ^ (crc >>> 8);
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        long c = crc;
+        int i = off;
+        int end = off + len;
+        for (; i + 8 <= end; i += 8) {
+            c ^= (b[i] & 0xffL) | (b[i + 1] & 0xffL) << 8 | (b[i + 2] & 0xffL) << 16
+                    | (b[i + 3] & 0xffL) << 24 | (b[i + 4] & 0xffL) << 32
+                    | (b[i + 5] & 0xffL) << 40 | (b[i + 6] & 0xffL) << 48
+                    | (b[i + 7] & 0xffL) << 56;
+            c = slice8(c);
+        }
+        for (; i < end; i++) {
+            c = TABLE[(int) (c ^ b[i]) & 0xff] ^ (c >>> 8);
+        }
+        crc = c;
+    }
+
+    /**
+     * 计算buf中[from, to)之间的字节, 不改变buf的position和limit
+     * 读取数据的缓冲区(包括内存映射和direct buffer)可以直接计算, 不需要先复制到byte数组
+     */
+    public void update(ByteBuffer buf, int from, int to) {
+        if (buf.hasArray()) {
+            update(buf.array(), buf.arrayOffset() + from, to - from);
+            return;
+        }
+        boolean le = buf.order() == ByteOrder.LITTLE_ENDIAN;
+        long c = crc;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            long w = buf.getLong(i);
+            c ^= le ? w : Long.reverseBytes(w);
+            c = slice8(c);
+        }
+        for (; i < to; i++) {
+            c = TABLE[(int) (c ^ buf.get(i)) & 0xff] ^ (c >>> 8);
+        }
+        crc = c;
+    }
+
+    /* c的8个字节已经和数据异或, 一次查8张表相当于逐字节处理8次 */
+    private static long slice8(long c) {
+        return T7[(int) c & 0xff] ^ T6[(int) (c >>> 8) & 0xff]
+                ^ T5[(int) (c >>> 16) & 0xff] ^ T4[(int) (c >>> 24) & 0xff]
+                ^ T3[(int) (c >>> 32) & 0xff] ^ T2[(int) (c >>> 40) & 0xff]
+                ^ T1[(int) (c >>> 48) & 0xff] ^ TABLE[(int) (c >>> 56)];
+    }
+
+    @Override
+    public long getValue() {
+        return crc;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0;
+    }
+}
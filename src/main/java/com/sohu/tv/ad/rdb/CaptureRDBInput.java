@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+import java.util.Arrays;
+
+/**
+ *
+ * 包装另一个数据源, 把经过的所有字节(包括跳过的)原样记录下来
+ * 延迟解析时用来保存value的原始编码; 指定了RDBWriter时不记录, 直接交给RDBWriter写出
+ *
+ */
+class CaptureRDBInput extends RDBInput {
+
+    /* 转给RDBWriter时, 跳过的内容每次最多读取的字节数 */
+    static final int TRANSFER_CHUNK = 64 * 1024;
+
+    private static final int INITIAL_SIZE = 256;
+
+    /* 记录过大value后扩大的缓冲区超过这个大小时, reset()重新分配, 不一直占用 */
+    private static final int MAX_RETAINED = 1024 * 1024;
+
+    private RDBInput in;
+
+    /* 不为null时经过的字节直接写到out, buf只用来中转跳过的内容 */
+    private RDBWriter out;
+
+    private byte[] buf = new byte[INITIAL_SIZE];
+
+    private int len;
+
+    /* 开始记录另一个数据源, 清空之前记录的内容 */
+    void reset(RDBInput in) {
+        reset(in, null);
+    }
+
+    /* 开始处理另一个数据源, out不为null时经过的字节都交给out写出 */
+    void reset(RDBInput in, RDBWriter out) {
+        this.in = in;
+        this.out = out;
+        this.len = 0;
+        if (buf.length > MAX_RETAINED) {
+            buf = new byte[INITIAL_SIZE];
+        }
+    }
+
+    /*
+     * 记录的内容, 正好填满缓冲区时直接交出缓冲区不再复制;
+     * 交出的或超过MAX_RETAINED的缓冲区都重新分配, 不和返回的value同时占用内存
+     */
+    byte[] toByteArray() {
+        byte[] b = len == buf.length ? buf : Arrays.copyOf(buf, len);
+        if (b == buf || buf.length > MAX_RETAINED) {
+            buf = new byte[INITIAL_SIZE];
+            len = 0;
+        }
+        return b;
+    }
+
+    private void ensure(long n) {
+        if (len + n > buf.length) {
+            long size = Math.max(buf.length * 2L, len + n);
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new RuntimeException("Value too large to capture: " + size);
+            }
+            buf = Arrays.copyOf(buf, (int) size);
+        }
+    }
+
+    @Override
+    public boolean readBytes(byte[] b, int start, int num) {
+        if (!in.readBytes(b, start, num)) {
+            return false;
+        }
+        if (out != null) {
+            out.putRaw(b, start, num);
+            return true;
+        }
+        ensure(num);
+        System.arraycopy(b, start, buf, len, num);
+        len += num;
+        return true;
+    }
+
+    @Override
+    public int read() {
+        int b = in.read();
+        if (b != -1) {
+            if (out != null) {
+                out.putRaw(b);
+                return b;
+            }
+            ensure(1);
+            buf[len++] = (byte) b;
+        }
+        return b;
+    }
+
+    @Override
+    public boolean skip(long n) {
+        if (out != null) {
+            /* 分块读出后写出, 不需要和value一样大的缓冲区 */
+            if (buf.length < TRANSFER_CHUNK && n > buf.length) {
+                buf = new byte[(int) Math.min(n, TRANSFER_CHUNK)];
+            }
+            while (n > 0) {
+                int chunk = (int) Math.min(n, buf.length);
+                if (!in.readBytes(buf, 0, chunk)) {
+                    return false;
+                }
+                out.putRaw(buf, 0, chunk);
+                n -= chunk;
+            }
+            return true;
+        }
+        /* 跳过的内容也要记录, 直接读到记录缓冲区中 */
+        ensure(n);
+        if (!in.readBytes(buf, len, (int) n)) {
+            return false;
+        }
+        len += (int) n;
+        return true;
+    }
+
+    @Override
+    public long position() {
+        return in.position();
+    }
+
+    @Override
+    public void close() {
+        in.close();
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ *
+ * 通过Channel加上一块固定大小的缓冲区读取RDB数据
+ *
+ */
+public class ChannelRDBInput extends RDBInput {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    private final ReadableByteChannel channel;
+
+    private final ByteBuffer bytebuffer;
+
+    /* 已经从channel读入缓冲区的字节总数 */
+    private long channelPos;
+
+    /* 不为null时计算经过的所有字节的校验和 */
+    private CRC64 checksum;
+
+    /* bytebuffer中这个位置之前的字节已经计入校验和 */
+    private int crcMark;
+
+    public ChannelRDBInput(ReadableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ChannelRDBInput(ReadableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.bytebuffer = ByteBuffer.allocateDirect(bufferSize);
+        /* RDB中的整数(长度字段除外)都是little endian */
+        this.bytebuffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.bytebuffer.position(0);
+        this.bytebuffer.limit(0);
+    }
+
+    /* 缓冲区读空后, 重新从channel读入数据 */
+    private boolean fill() {
+        if (checksum != null) {
+            checksum.update(bytebuffer, crcMark, bytebuffer.position());
+            crcMark = 0;
+        }
+        bytebuffer.clear();
+        int nRead = 0;
+        while (nRead == 0) {
+            try {
+                nRead = channel.read(bytebuffer);
+            } catch (IOException e) {
+                return false;
+            }
+            if (nRead == -1) {
+                bytebuffer.limit(0);
+                return false;
+            }
+        }
+        channelPos += nRead;
+        bytebuffer.flip();
+        return true;
+    }
+
+    @Override
+    public boolean readBytes(byte[] buf, int start, int num) {
+        if (num < 0) {
+            throw new IllegalArgumentException("Num must bigger than zero");
+        }
+
+        int nget = Math.min(bytebuffer.remaining(), num);
+        bytebuffer.get(buf, start, nget);
+        while (nget < num) {
+            start = start + nget;
+            num = num - nget;
+            if (!fill()) {
+                return false;
+            }
+            nget = Math.min(bytebuffer.remaining(), num);
+            bytebuffer.get(buf, start, nget);
+        }
+        return true;
+    }
+
+    @Override
+    public int read() {
+        if (!bytebuffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return bytebuffer.get() & 0x00ff;
+    }
+
+    @Override
+    public int readInt16LE() {
+        if (bytebuffer.remaining() < 2) {
+            return super.readInt16LE();
+        }
+        return bytebuffer.getShort();
+    }
+
+    @Override
+    public int readInt32LE() {
+        if (bytebuffer.remaining() < 4) {
+            return super.readInt32LE();
+        }
+        return bytebuffer.getInt();
+    }
+
+    @Override
+    public long readInt64LE() {
+        if (bytebuffer.remaining() < 8) {
+            return super.readInt64LE();
+        }
+        return bytebuffer.getLong();
+    }
+
+    @Override
+    public long readUInt32BE() {
+        if (bytebuffer.remaining() < 4) {
+            return super.readUInt32BE();
+        }
+        return Integer.reverseBytes(bytebuffer.getInt()) & 0xffffffffL;
+    }
+
+    @Override
+    public boolean skip(long n) {
+        if (n <= bytebuffer.remaining()) {
+            bytebuffer.position(bytebuffer.position() + (int) n);
+            return true;
+        }
+        n -= bytebuffer.remaining();
+        bytebuffer.position(bytebuffer.limit());
+        /* 文件可以直接移动position, 不需要把跳过的数据读出来; 管道等不能seek的或者需要计算校验和时只能读过去 */
+        if (channel instanceof FileChannel && checksum == null) {
+            try {
+                FileChannel fc = (FileChannel) channel;
+                long target = fc.position() + n;
+                if (target > fc.size()) {
+                    return false;
+                }
+                fc.position(target);
+                channelPos += n;
+                return true;
+            } catch (IOException e) {}
+        }
+        while (n > 0) {
+            if (!fill()) {
+                return false;
+            }
+            int step = (int) Math.min(bytebuffer.remaining(), n);
+            bytebuffer.position(bytebuffer.position() + step);
+            n -= step;
+        }
+        return true;
+    }
+
+    @Override
+    public long position() {
+        return channelPos - bytebuffer.remaining();
+    }
+
+    @Override
+    public boolean setChecksum(CRC64 crc) {
+        checksum = crc;
+        crcMark = bytebuffer.position();
+        return true;
+    }
+
+    @Override
+    public long getChecksum() {
+        if (checksum == null) {
+            return 0;
+        }
+        checksum.update(bytebuffer, crcMark, bytebuffer.position());
+        crcMark = bytebuffer.position();
+        return checksum.getValue();
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {}
+    }
+}
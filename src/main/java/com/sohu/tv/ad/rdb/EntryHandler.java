@@ -0,0 +1,19 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+/**
+ *
+ * 处理解析出来的每一个entry
+ *
+ */
+public interface EntryHandler {
+
+    /**
+     * 并行解析时会被多个线程同时调用, 实现类需要自己保证线程安全
+     * @param entry
+     */
+    void handle(ParseRDB.Entry entry);
+}
@@ -6,6 +6,8 @@ package com.sohu.tv.ad.rdb;
 
 /**
  * 解析IntSet类型数据
+ * intset的格式: 4字节encoding(每个元素占的字节数2/4/8), 4字节元素个数, 然后是从小到大排好序的元素,
+ * 都是little endian; 解析为long数组, 不会创建Long和String对象
  * @author Wang GangHua
  * @version 1.0.0 2013-11-30
  *
@@ -14,6 +16,111 @@ public class IntSet {
     public static final int INTSET_ENC_INT16 = 16;
     public static final int INTSET_ENC_INT32 = 32;
     public static final int INTSET_ENC_INT64 = 64;
-    
-    //TODO
+
+    private final long[] values;
+
+    private IntSet(long[] values) {
+        this.values = values;
+    }
+
+    /**
+     * 解析RDB中REDIS_SET_INTSET类型的value
+     * @param intset
+     * @return
+     */
+    public static IntSet decode(byte[] intset) {
+        if (intset.length < 8) {
+            ERROR("Intset too short (%d bytes)", intset.length);
+        }
+        int encoding = (int) readLE(intset, 0, 4);
+        int length = (int) readLE(intset, 4, 4);
+        if (encoding * 8 != INTSET_ENC_INT16 && encoding * 8 != INTSET_ENC_INT32
+                && encoding * 8 != INTSET_ENC_INT64) {
+            ERROR("Unknown intset encoding (%d)", encoding);
+        }
+        if (length < 0 || 8 + (long) length * encoding > intset.length) {
+            ERROR("Intset length %d out of range", length);
+        }
+        long[] values = new long[length];
+        for (int i = 0, pos = 8; i < length; i++, pos += encoding) {
+            long v = readLE(intset, pos, encoding);
+            /* 符号扩展 */
+            int shift = 64 - encoding * 8;
+            values[i] = (v << shift) >> shift;
+        }
+        return new IntSet(values);
+    }
+
+    private static long readLE(byte[] buf, int pos, int len) {
+        long v = 0;
+        for (int i = len - 1; i >= 0; i--) {
+            v = (v << 8) | (buf[pos + i] & 0x00ff);
+        }
+        return v;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    /* 第i小的元素 */
+    public long get(int i) {
+        return values[i];
+    }
+
+    /* 元素是排好序的, 二分查找 */
+    public boolean contains(long value) {
+        int lo = 0, hi = values.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid] < value) {
+                lo = mid + 1;
+            } else if (values[mid] > value) {
+                hi = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* 从小到大遍历, 不会装箱 */
+    public Iterator iterator() {
+        return new Iterator();
+    }
+
+    public long[] toArray() {
+        return values.clone();
+    }
+
+    public class Iterator {
+        private int i = 0;
+
+        public boolean hasNext() {
+            return i < values.length;
+        }
+
+        public long next() {
+            if (i >= values.length) {
+                throw new java.util.NoSuchElementException();
+            }
+            return values[i++];
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(values[i]);
+        }
+        return sb.append(']').toString();
+    }
+
+    static void ERROR(String msg, Object... args) {
+        throw new RuntimeException(String.format(msg, args));
+    }
 }
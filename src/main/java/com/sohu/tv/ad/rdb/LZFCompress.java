@@ -4,9 +4,13 @@
  */
 package com.sohu.tv.ad.rdb;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 /**
  * 
  * 使用LZF算法对字符串的压缩和解压
+ * 压缩使用的hash表属于实例, 每个线程使用自己的实例(或者静态的compress方法, 使用线程本地的实例)
  * @author Wang GangHua
  * @version 1.0.0 2013-11-30
  *
@@ -35,10 +39,39 @@ public final class LZFCompress{
      */
     private static final int MAX_REF = (1 << 8) + (1 << 3);
 
+    /**
+     * One compressor per thread for the static compress method.
+     */
+    private static final ThreadLocal<LZFCompress> LOCAL = new ThreadLocal<LZFCompress>() {
+        @Override
+        protected LZFCompress initialValue() {
+            return new LZFCompress();
+        }
+    };
+
     /**
      * Hash table for matching byte sequences (reused for performance).
      */
-    private static int[] cachedHashTable;
+    private final int[] hashTab = new int[HASH_SIZE];
+
+    /**
+     * Output area when compressing into a direct buffer.
+     */
+    private byte[] scratch;
+
+    /**
+     * Create a compressor. An instance is not thread-safe, use one per thread.
+     */
+    public LZFCompress() {
+    }
+
+    /**
+     * The largest possible size of the compressed data, when there is
+     * nothing to compress: one control byte for each 32 literals.
+     */
+    public static int maxCompressedLength(int inLen) {
+        return inLen + (inLen + MAX_LITERAL - 1) / MAX_LITERAL + 1;
+    }
 
     /**
      * Return byte with lower 2 bytes being byte at index, then index+1.
@@ -62,7 +95,7 @@ public final class LZFCompress{
     }
 
     /**
-     * Compress a number of bytes.
+     * Compress a number of bytes with the compressor of the current thread.
      *
      * @param in the input data
      * @param inLen the number of bytes to compress
@@ -71,29 +104,74 @@ public final class LZFCompress{
      * @return the end position
      */
     public static int compress(byte[] in, int inLen, byte[] out, int outPos) {
-        int inPos = 0;
-        if (cachedHashTable == null) {
-            cachedHashTable = new int[HASH_SIZE];
+        return LOCAL.get().compress(in, 0, inLen, out, outPos);
+    }
+
+    /**
+     * Compress a number of bytes into a heap or direct buffer, at the position
+     * of the buffer, which is moved forward by the compressed size.
+     *
+     * @param in the input data
+     * @param inPos the offset at the input array
+     * @param inLen the number of bytes to compress
+     * @param out the output buffer, with at least maxCompressedLength(inLen) bytes remaining
+     * @return the compressed size
+     */
+    public int compress(byte[] in, int inPos, int inLen, ByteBuffer out) {
+        int max = maxCompressedLength(inLen);
+        if (out.remaining() < max) {
+            throw new BufferOverflowException();
+        }
+        if (out.hasArray()) {
+            int start = out.arrayOffset() + out.position();
+            int len = compress(in, inPos, inLen, out.array(), start) - start;
+            out.position(out.position() + len);
+            return len;
+        }
+        if (scratch == null || scratch.length < max) {
+            scratch = new byte[max];
+        }
+        int len = compress(in, inPos, inLen, scratch, 0);
+        out.put(scratch, 0, len);
+        return len;
+    }
+
+    /**
+     * Compress a number of bytes.
+     *
+     * @param in the input data
+     * @param inPos the offset at the input array
+     * @param inLen the number of bytes to compress
+     * @param out the output area, with at least maxCompressedLength(inLen) bytes from outPos
+     * @param outPos the offset at the output array
+     * @return the end position
+     */
+    public int compress(byte[] in, int inPos, int inLen, byte[] out, int outPos) {
+        if (inLen == 0) {
+            return outPos;
         }
-        int[] hashTab = cachedHashTable;
+        int start = inPos;
+        int inEnd = inPos + inLen;
+        int[] hashTab = this.hashTab;
         int literals = 0;
         outPos++;
-        int future = first(in, 0);
-        while (inPos < inLen - 4) {
+        int future = inLen > 1 ? first(in, inPos) : 0;
+        while (inPos < inEnd - 4) {
             byte p2 = in[inPos + 2];
             // next
             future = (future << 8) + (p2 & 255);
             int off = hash(future);
             int ref = hashTab[off];
             hashTab[off] = inPos;
+            // entries left from earlier input are checked by comparing the bytes
             if (ref < inPos
-                        && ref > 0
+                        && ref > start
                         && (off = inPos - ref - 1) < MAX_OFF
                         && in[ref + 2] == p2
                         && in[ref + 1] == (byte) (future >> 8)
                         && in[ref] == (byte) (future >> 16)) {
                 // match
-                int maxLen = inLen - inPos - 2;
+                int maxLen = inEnd - inPos - 2;
                 if (maxLen > MAX_REF) {
                     maxLen = MAX_REF;
                 }
@@ -146,7 +224,7 @@ public final class LZFCompress{
             }
         }
         // write the remaining few bytes as literals
-        while (inPos < inLen) {
+        while (inPos < inEnd) {
             out[outPos++] = in[inPos++];
             literals++;
             if (literals == MAX_LITERAL) {
@@ -163,25 +241,41 @@ public final class LZFCompress{
         return outPos;
     }
 
+    /**
+     * Back-references shorter than this are copied byte by byte, which is
+     * cheaper than calling System.arraycopy for a few bytes.
+     */
+    private static final int MIN_BULK_COPY = 16;
+
     /**
      * Expand a number of compressed bytes.
+     * Literal runs and back-references are copied with System.arraycopy; an
+     * overlapping back-reference (offset smaller than its length) repeats the
+     * already expanded period, doubling the chunk size with each copy.
      *
      * @param in the compressed data
      * @param inPos the offset at the input array
      * @param inLen the number of bytes to read
      * @param out the output area
      * @param outPos the offset at the output array
-     * @param outLen the size of the uncompressed data
+     * @param outLen the end position of the uncompressed data in the output array
      */
     public static void expand(byte[] in, int inPos, int inLen, byte[] out, int outPos, int outLen) {
-        if (inPos < 0 || outPos < 0 || outLen < 0) {
+        if (inPos < 0 || outPos < 0 || outLen < 0 || outLen > out.length) {
             throw new IllegalArgumentException();
         }
-        do {
+        int inEnd = inPos + inLen;
+        while (outPos < outLen) {
+            if (inPos >= inEnd) {
+                throw new ArrayIndexOutOfBoundsException("Truncated LZF data");
+            }
             int ctrl = in[inPos++] & 255;
             if (ctrl < MAX_LITERAL) {
                 // literal run of length = ctrl + 1,
                 ctrl++;
+                if (outPos + ctrl > outLen || inPos + ctrl > inEnd) {
+                    throw new ArrayIndexOutOfBoundsException("LZF literal run out of range");
+                }
                 // copy to output and move forward this many bytes
                 System.arraycopy(in, inPos, out, outPos, ctrl);
                 outPos += ctrl;
@@ -198,25 +292,98 @@ public final class LZFCompress{
                 // so 2 was subtracted before storing size
                 len += 2;
 
-                // ctrl is now the offset for a back-reference...
-                // the logical AND operation removes the length bits
-                ctrl = -((ctrl & 0x1f) << 8) - 1;
-
-                // the next byte augments/increases the offset
-                ctrl -= in[inPos++] & 255;
+                // the low 5 bits and the next byte are the offset - 1
+                int ref = outPos - ((ctrl & 0x1f) << 8) - 1 - (in[inPos++] & 255);
+                if (ref < 0 || outPos + len > outLen) {
+                    throw new ArrayIndexOutOfBoundsException("LZF back-reference out of range");
+                }
+                if (len < MIN_BULK_COPY) {
+                    for (int i = 0; i < len; i++) {
+                        out[outPos++] = out[ref++];
+                    }
+                    continue;
+                }
+                int end = outPos + len;
+                while (outPos < end) {
+                    // at most the distance, so source and target never overlap
+                    int n = Math.min(outPos - ref, end - outPos);
+                    System.arraycopy(out, ref, out, outPos, n);
+                    outPos += n;
+                }
+            }
+        }
+    }
 
-                // copy the back-reference bytes from the given
-                // location in output to current position
-                ctrl += outPos;
-                if (outPos + len > outLen) {
-                    // reduce array bounds checking
-                    throw new ArrayIndexOutOfBoundsException();
+    /**
+     * Expand a number of compressed bytes into a heap or direct buffer.
+     * The data is written at the position of the buffer, which is moved
+     * forward by outLen.
+     *
+     * @param in the compressed data
+     * @param inPos the offset at the input array
+     * @param inLen the number of bytes to read
+     * @param out the output buffer
+     * @param outLen the size of the uncompressed data
+     */
+    public static void expand(byte[] in, int inPos, int inLen, ByteBuffer out, int outLen) {
+        if (out.remaining() < outLen) {
+            throw new BufferOverflowException();
+        }
+        int start = out.position();
+        if (out.hasArray()) {
+            int offset = out.arrayOffset() + start;
+            expand(in, inPos, inLen, out.array(), offset, offset + outLen);
+            out.position(start + outLen);
+            return;
+        }
+        int outPos = start;
+        int outEnd = start + outLen;
+        int inEnd = inPos + inLen;
+        // the source of back-references, a view of the same memory
+        ByteBuffer src = null;
+        while (outPos < outEnd) {
+            if (inPos >= inEnd) {
+                throw new ArrayIndexOutOfBoundsException("Truncated LZF data");
+            }
+            int ctrl = in[inPos++] & 255;
+            if (ctrl < MAX_LITERAL) {
+                ctrl++;
+                if (outPos + ctrl > outEnd || inPos + ctrl > inEnd) {
+                    throw new ArrayIndexOutOfBoundsException("LZF literal run out of range");
                 }
-                for (int i = 0; i < len; i++) {
-                    out[outPos++] = out[ctrl++];
+                out.put(in, inPos, ctrl);
+                outPos += ctrl;
+                inPos += ctrl;
+            } else {
+                int len = ctrl >> 5;
+                if (len == 7) {
+                    len += in[inPos++] & 255;
+                }
+                len += 2;
+                int ref = outPos - ((ctrl & 0x1f) << 8) - 1 - (in[inPos++] & 255);
+                if (ref < start || outPos + len > outEnd) {
+                    throw new ArrayIndexOutOfBoundsException("LZF back-reference out of range");
+                }
+                if (len < MIN_BULK_COPY) {
+                    for (int i = 0; i < len; i++) {
+                        out.put(out.get(ref++));
+                    }
+                    outPos += len;
+                    continue;
+                }
+                if (src == null) {
+                    src = out.duplicate();
+                }
+                int end = outPos + len;
+                while (outPos < end) {
+                    int n = Math.min(outPos - ref, end - outPos);
+                    src.limit(ref + n);
+                    src.position(ref);
+                    out.put(src);
+                    outPos += n;
                 }
             }
-        } while (outPos < outLen);
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+/**
+ *
+ * 解析listpack类型数据(redis 7开始代替ziplist, quicklist的节点从RDB版本10开始也是listpack)
+ * 格式: 4字节总长度, 2字节元素个数(little endian), 然后是各个元素, 最后是0xff结束符
+ * 每个元素为: 编码(包括字符串长度), 数据, backlen(编码和数据的总长度, 反向遍历用)
+ * 以游标的方式遍历, 见PackedList
+ *
+ */
+public class ListPack extends PackedList {
+
+    public static final int LISTPACK_HEADER_SIZE = 6;
+    public static final int LISTPACK_END = 255;
+
+    /* 元素个数超过65534时头部的计数为这个值, 需要遍历才能得到 */
+    public static final int LISTPACK_COUNT_UNKNOWN = 65535;
+
+    /* 编码的第一个字节 */
+    public static final int LP_ENCODING_7BIT_UINT_MASK = 0x80;	/* 0xxxxxxx 7位无符号整数 */
+    public static final int LP_ENCODING_6BIT_STR = 0x80;	/* 10xxxxxx 6位长度的字符串 */
+    public static final int LP_ENCODING_13BIT_INT = 0xC0;	/* 110xxxxx yyyyyyyy 13位有符号整数 */
+    public static final int LP_ENCODING_12BIT_STR = 0xE0;	/* 1110xxxx yyyyyyyy 12位长度的字符串 */
+    public static final int LP_ENCODING_32BIT_STR = 0xF0;	/* 11110000 后面4字节为长度 */
+    public static final int LP_ENCODING_16BIT_INT = 0xF1;
+    public static final int LP_ENCODING_24BIT_INT = 0xF2;
+    public static final int LP_ENCODING_32BIT_INT = 0xF3;
+    public static final int LP_ENCODING_64BIT_INT = 0xF4;
+
+    private int index;
+
+    public ListPack(byte[] listpack) {
+        super(listpack);
+        if (listpack.length < LISTPACK_HEADER_SIZE + 1) {
+            ERROR("Listpack too short (%d bytes)", listpack.length);
+        }
+        this.index = LISTPACK_HEADER_SIZE;
+    }
+
+    /* 头部记录的元素个数, 等于LISTPACK_COUNT_UNKNOWN时不准确 */
+    public int decodeEntryCount() {
+        return ((array[5] & 0x00ff) << 8) | (array[4] & 0x00ff);
+    }
+
+    @Override
+    public boolean next() {
+        if (index >= array.length || (array[index] & 0x00ff) == LISTPACK_END) {
+            return false;
+        }
+        int b = array[index] & 0x00ff;
+        /* 编码部分的字节数, 整数编码时data为数据的字节数 */
+        int head;
+        int data = 0;
+        isInteger = false;
+        length = 0;
+        if ((b & LP_ENCODING_7BIT_UINT_MASK) == 0) {
+            isInteger = true;
+            longValue = b;
+            head = 1;
+        } else if ((b & 0xC0) == LP_ENCODING_6BIT_STR) {
+            length = b & 0x3F;
+            head = 1;
+        } else if ((b & 0xE0) == LP_ENCODING_13BIT_INT) {
+            isInteger = true;
+            int v = ((b & 0x1F) << 8) | (byteAt(index + 1) & 0x00ff);
+            /* 13位的补码 */
+            longValue = v >= 1 << 12 ? v - (1 << 13) : v;
+            head = 2;
+        } else if ((b & 0xF0) == LP_ENCODING_12BIT_STR) {
+            length = ((b & 0x0F) << 8) | (byteAt(index + 1) & 0x00ff);
+            head = 2;
+        } else {
+            head = 1;
+            switch (b) {
+                case LP_ENCODING_32BIT_STR:
+                    long len = readLE(index + 1, 4) & 0xffffffffL;
+                    if (len > array.length) {
+                        ERROR("Listpack entry length %d out of range", len);
+                    }
+                    length = (int) len;
+                    head = 5;
+                    break;
+                case LP_ENCODING_16BIT_INT:
+                    data = 2;
+                    break;
+                case LP_ENCODING_24BIT_INT:
+                    data = 3;
+                    break;
+                case LP_ENCODING_32BIT_INT:
+                    data = 4;
+                    break;
+                case LP_ENCODING_64BIT_INT:
+                    data = 8;
+                    break;
+                default:
+                    ERROR("Unknown listpack entry encoding (0x%02x)", b);
+            }
+            if (data > 0) {
+                isInteger = true;
+                longValue = readLE(index + 1, data);
+            }
+        }
+        offset = index + head;
+        int entryLen = head + data + length;
+        if ((long) index + entryLen > array.length) {
+            ERROR("Listpack entry length %d out of range", length);
+        }
+        /* 跳过backlen, 不需要解析 */
+        index += entryLen + backlenSize(entryLen);
+        return true;
+    }
+
+    private byte byteAt(int pos) {
+        if (pos >= array.length) {
+            ERROR("Listpack entry out of range");
+        }
+        return array[pos];
+    }
+
+    /* backlen每个字节保存7位, 占1~5个字节 */
+    static int backlenSize(int len) {
+        if (len <= 127) {
+            return 1;
+        } else if (len < 16383) {
+            return 2;
+        } else if (len < 2097151) {
+            return 3;
+        } else if (len < 268435455) {
+            return 4;
+        }
+        return 5;
+    }
+}
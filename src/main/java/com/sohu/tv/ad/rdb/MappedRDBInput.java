@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ *
+ * 通过内存映射读取RDB文件, 按窗口大小分段映射, 适合几十G的dump文件
+ * 数据直接从映射的内存中解析, 不需要read系统调用和额外的缓冲区拷贝
+ *
+ */
+public class MappedRDBInput extends RDBInput {
+
+    public static final int DEFAULT_WINDOW_SIZE = 256 * 1024 * 1024;
+
+    private final FileChannel filech;
+
+    private final long fileSize;
+
+    private final int windowSize;
+
+    private MappedByteBuffer window;
+
+    /* 当前窗口在文件中的起始位置 */
+    private long windowStart;
+
+    /* 不为null时计算经过的所有字节的校验和 */
+    private CRC64 checksum;
+
+    /* window中这个位置之前的字节已经计入校验和 */
+    private int crcMark;
+
+    public MappedRDBInput(File file) throws IOException {
+        this(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedRDBInput(File file, int windowSize) throws IOException {
+        this(file, windowSize, 0);
+    }
+
+    /**
+     * @param file
+     * @param windowSize 每次映射的字节数
+     * @param start 从文件的这个位置开始读取
+     */
+    public MappedRDBInput(File file, int windowSize, long start) throws IOException {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size must bigger than zero");
+        }
+        this.filech = new FileInputStream(file).getChannel();
+        this.fileSize = filech.size();
+        this.windowSize = windowSize;
+        if (start < 0 || start > fileSize) {
+            filech.close();
+            throw new IllegalArgumentException("Start position out of range: " + start);
+        }
+        map(start);
+    }
+
+    /* 从文件的pos位置开始重新映射一个窗口 */
+    private void map(long pos) throws IOException {
+        long size = Math.min(windowSize, fileSize - pos);
+        window = filech.map(FileChannel.MapMode.READ_ONLY, pos, size);
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        windowStart = pos;
+    }
+
+    /* 当前窗口读完后滑动到下一个窗口 */
+    private boolean slide() {
+        long pos = windowStart + window.position();
+        if (pos >= fileSize) {
+            return false;
+        }
+        if (checksum != null) {
+            checksum.update(window, crcMark, window.position());
+            crcMark = 0;
+        }
+        try {
+            map(pos);
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean readBytes(byte[] buf, int start, int num) {
+        if (num < 0) {
+            throw new IllegalArgumentException("Num must bigger than zero");
+        }
+        /* 数据跨越窗口边界时, 先读完当前窗口剩余部分, 再映射下一个窗口 */
+        while (num > 0) {
+            if (!window.hasRemaining() && !slide()) {
+                return false;
+            }
+            int nget = Math.min(window.remaining(), num);
+            window.get(buf, start, nget);
+            start += nget;
+            num -= nget;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() {
+        if (!window.hasRemaining() && !slide()) {
+            return -1;
+        }
+        return window.get() & 0x00ff;
+    }
+
+    @Override
+    public int readInt16LE() {
+        if (window.remaining() < 2) {
+            return super.readInt16LE();
+        }
+        return window.getShort();
+    }
+
+    @Override
+    public int readInt32LE() {
+        if (window.remaining() < 4) {
+            return super.readInt32LE();
+        }
+        return window.getInt();
+    }
+
+    @Override
+    public long readInt64LE() {
+        if (window.remaining() < 8) {
+            return super.readInt64LE();
+        }
+        return window.getLong();
+    }
+
+    @Override
+    public long readUInt32BE() {
+        if (window.remaining() < 4) {
+            return super.readUInt32BE();
+        }
+        return Integer.reverseBytes(window.getInt()) & 0xffffffffL;
+    }
+
+    @Override
+    public boolean skip(long n) {
+        if (n <= window.remaining()) {
+            window.position(window.position() + (int) n);
+            return true;
+        }
+        /* 需要计算校验和时跳过的数据也要经过, 只能逐个窗口滑动 */
+        if (checksum != null) {
+            while (n > 0) {
+                if (!window.hasRemaining() && !slide()) {
+                    return false;
+                }
+                int step = (int) Math.min(window.remaining(), n);
+                window.position(window.position() + step);
+                n -= step;
+            }
+            return true;
+        }
+        long target = position() + n;
+        if (target > fileSize) {
+            return false;
+        }
+        try {
+            map(target);
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public long position() {
+        return windowStart + window.position();
+    }
+
+    @Override
+    public boolean setChecksum(CRC64 crc) {
+        checksum = crc;
+        crcMark = window.position();
+        return true;
+    }
+
+    @Override
+    public long getChecksum() {
+        if (checksum == null) {
+            return 0;
+        }
+        checksum.update(window, crcMark, window.position());
+        crcMark = window.position();
+        return checksum.getValue();
+    }
+
+    @Override
+    public void close() {
+        window = null;
+        try {
+            filech.close();
+        } catch (IOException e) {}
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+/**
+ *
+ * ziplist和listpack的游标
+ * 每次next()之后, 整数编码的元素通过getLong()取值,
+ * 字符串编码的元素通过getOffset()/getLength()直接引用原始的byte数组, 不复制数据
+ *
+ */
+public abstract class PackedList {
+
+    /* 整个ziplist/listpack的数据 */
+    protected final byte[] array;
+
+    /* 当前元素, next()之后有效 */
+    protected boolean isInteger;
+    protected long longValue;
+    protected int offset;
+    protected int length;
+
+    protected PackedList(byte[] array) {
+        this.array = array;
+    }
+
+    /**
+     * 游标移动到下一个元素
+     * @return 已经到达结束符时返回false
+     */
+    public abstract boolean next();
+
+    /* 当前元素是否为整数编码 */
+    public boolean isInteger() {
+        return isInteger;
+    }
+
+    /* 整数编码的元素的值 */
+    public long getLong() {
+        return longValue;
+    }
+
+    /* 字符串编码的元素在getArray()中的起始位置 */
+    public int getOffset() {
+        return offset;
+    }
+
+    /* 字符串编码的元素的字节数 */
+    public int getLength() {
+        return length;
+    }
+
+    public byte[] getArray() {
+        return array;
+    }
+
+    /* 从pos开始读取n个字节的little endian有符号整数 */
+    protected long readLE(int pos, int n) {
+        if (pos + n > array.length) {
+            ERROR("Entry out of range");
+        }
+        long v = 0;
+        for (int i = n - 1; i >= 0; i--) {
+            v = (v << 8) | (array[pos + i] & 0x00ff);
+        }
+        /* 符号扩展 */
+        int shift = 64 - n * 8;
+        return (v << shift) >> shift;
+    }
+
+    static String byteToString(byte[] buf, int offset, int length) {
+        return new String(buf, offset, length, ParseRDB.CHARSET);
+    }
+
+    static void ERROR(String msg, Object... args) {
+        throw new RuntimeException(String.format(msg, args));
+    }
+}
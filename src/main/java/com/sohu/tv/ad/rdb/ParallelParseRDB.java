@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ *
+ * 多线程并行解析一个RDB文件
+ * 第一遍只读取type和length, 跳过所有的数据内容, 找到entry的边界并把文件切分成若干段;
+ * 第二遍每个线程各自映射文件, 并行解析自己负责的那一段
+ *
+ */
+public class ParallelParseRDB {
+
+    /* 每个线程分到的段数, 多切几段避免某一段特别大时其他线程空等 */
+    private static final int RANGES_PER_THREAD = 4;
+
+    private final File file;
+
+    private final int threads;
+
+    private final int windowSize;
+
+    /* 文件中的一段, 从某个entry的起始位置开始 */
+    static class Range {
+        final long start;
+        final long end;
+        final int db;	/* start位置所在的数据库编号 */
+
+        Range(long start, long end, int db) {
+            this.start = start;
+            this.end = end;
+            this.db = db;
+        }
+    }
+
+    public ParallelParseRDB(File file) {
+        this(file, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelParseRDB(File file, int threads) {
+        this(file, threads, MappedRDBInput.DEFAULT_WINDOW_SIZE);
+    }
+
+    public ParallelParseRDB(File file, int threads, int windowSize) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Threads must bigger than zero");
+        }
+        this.file = file;
+        this.threads = threads;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * 第一遍扫描, 按entry边界把文件切成大致相等的count段
+     */
+    List<Range> split(int count) {
+        List<Range> ranges = new ArrayList<Range>();
+        ParseRDB rdb = new ParseRDB();
+        /* 第一遍只扫描entry边界, value直接跳过, 不校验 */
+        rdb.setVerifyChecksum(false);
+        try {
+            rdb.init(new MappedRDBInput(file, windowSize));
+        } catch (IOException e) {
+            throw new RuntimeException("Found exceptions when opening file", e);
+        }
+        try {
+            long start = rdb.input.position();
+            long target = Math.max(1, (file.length() - start) / count);
+            int startDb = 0;
+            while (rdb.scanEntry(false) != ParseRDB.REDIS_EOF) {
+                /* 只在key的entry起始位置切分 */
+                long pos = rdb.entryStart;
+                if (pos - start >= target) {
+                    ranges.add(new Range(start, pos, startDb));
+                    start = pos;
+                    startDb = rdb.db;
+                }
+            }
+            if (rdb.entryStart > start) {
+                ranges.add(new Range(start, rdb.entryStart, startDb));
+            }
+        } finally {
+            rdb.close();
+        }
+        return ranges;
+    }
+
+    /**
+     * 并行解析整个文件, 所有entry都解析完后返回
+     * @param handler 会被多个线程同时调用
+     */
+    public void parse(final EntryHandler handler) {
+        List<Range> ranges = split(threads * RANGES_PER_THREAD);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (final Range range : ranges) {
+                futures.add(pool.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return parseRange(range, handler);
+                    }
+                }));
+            }
+            for (Future<Long> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while parsing", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Found exceptions when parsing", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /* 解析一段, 返回这一段的entry数 */
+    private long parseRange(Range range, EntryHandler handler) throws IOException {
+        ParseRDB rdb = new ParseRDB();
+        rdb.initRange(new MappedRDBInput(file, windowSize, range.start), range.db, range.end);
+        long count = 0;
+        try {
+            ParseRDB.Entry entry;
+            while ((entry = rdb.next()) != null) {
+                handler.handle(entry);
+                count++;
+            }
+        } finally {
+            rdb.close();
+        }
+        return count;
+    }
+}
@@ -5,17 +5,23 @@
 package com.sohu.tv.ad.rdb;
 
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 /**
  *
- * 解析redis的dump.rdb文件, 可以支持最新的RDB第6版本
+ * 解析redis的dump.rdb文件, 支持RDB第1到第11版本(redis 7.2)
  * RBD文件格式可以参照 : https://github.com/sripathikrishnan/redis-rdb-tools/wiki/Redis-RDB-Dump-File-Format
  *
  * @author Wang GangHua
@@ -34,6 +40,10 @@ public class ParseRDB {
 
     public static final int REDIS_HASH = 4;
 
+    public static final int REDIS_ZSET_2 = 5; /* score保存为8字节的double, RDB版本8开始 */
+
+    public static final int REDIS_MODULE_2 = 7; /* 模块定义的类型, 无法解析, 只能跳过 */
+
     public static final int REDIS_HASH_ZIPMAP = 9;
 
     public static final int REDIS_LIST_ZIPLIST = 10;
@@ -44,6 +54,32 @@ public class ParseRDB {
 
     public static final int REDIS_HASH_ZIPLIST = 13;
 
+    public static final int REDIS_LIST_QUICKLIST = 14; /* 多个ziplist节点, RDB版本7开始 */
+
+    public static final int REDIS_STREAM_LISTPACKS = 15; /* stream, 消息保存在listpack节点中, RDB版本9开始 */
+
+    public static final int REDIS_HASH_LISTPACK = 16; /* 以下为redis 7的listpack编码, RDB版本10开始 */
+
+    public static final int REDIS_ZSET_LISTPACK = 17;
+
+    public static final int REDIS_LIST_QUICKLIST_2 = 18; /* 节点为listpack或单个大元素 */
+
+    public static final int REDIS_STREAM_LISTPACKS_2 = 19; /* 增加first id, 消费组的entries-read等, RDB版本10开始 */
+
+    public static final int REDIS_SET_LISTPACK = 20; /* RDB版本11开始 */
+
+    public static final int REDIS_STREAM_LISTPACKS_3 = 21; /* 增加消费者的active-time, RDB版本11开始 */
+
+    /* stream消息的flags */
+    public static final int STREAM_ITEM_FLAG_DELETED = 1; /* 已删除的消息 */
+
+    public static final int STREAM_ITEM_FLAG_SAMEFIELDS = 2; /* 字段和节点的master字段相同, 只保存值 */
+
+    /* REDIS_LIST_QUICKLIST_2的节点类型 */
+    public static final int QUICKLIST_NODE_CONTAINER_PLAIN = 1;
+
+    public static final int QUICKLIST_NODE_CONTAINER_PACKED = 2;
+
 
     public static final int REDIS_ENCODING_RAW = 0; /* Raw representation */
 
@@ -54,6 +90,18 @@ public class ParseRDB {
     public static final int REDIS_ENCODING_HT = 3; /* hash table编码方式 */
 
     /* Redis的特殊标示 */
+    public static final int REDIS_FUNCTION = 245; /* redis 7的函数库代码, RDB版本10开始 */
+
+    public static final int REDIS_MODULE_AUX = 247; /* 模块保存的全局数据, RDB版本9开始 */
+
+    public static final int REDIS_IDLE = 248; /* key的LRU空闲时间(秒), 在key的类型之前, RDB版本9开始 */
+
+    public static final int REDIS_FREQ = 249; /* key的LFU访问频率(1个字节), 在key的类型之前, RDB版本9开始 */
+
+    public static final int REDIS_AUX = 250; /* 辅助字段: redis-ver, used-mem等, RDB版本7开始 */
+
+    public static final int REDIS_RESIZEDB = 251; /* 后面是当前数据库的key个数和带过期时间的key个数, RDB版本7开始 */
+
     public static final int REDIS_EXPIRETIME_FC = 252; /* 毫秒级过期时间,占用8个字节 */
 
     public static final int REDIS_EXPIRETIME_FD = 253;	/* 秒级过期时间 ,占用8个字节 */
@@ -70,8 +118,20 @@ public class ParseRDB {
     public static final int REDIS_RDB_32BITLEN = 2;
     public static final int REDIS_RDB_ENCVAL = 3;
 
+    /* REDIS_RDB_32BITLEN的第一个字节, 0x80后面为4字节长度, 0x81后面为8字节长度(RDB版本9开始) */
+    public static final int REDIS_RDB_32BITLEN_FLAG = 0x80;
+    public static final int REDIS_RDB_64BITLEN_FLAG = 0x81;
+
     public static final long REDIS_RDB_LENERR = Long.MAX_VALUE;
 
+    /* 模块序列化数据中每个值的类型, 以REDIS_MODULE_OPCODE_EOF结束 */
+    public static final int REDIS_MODULE_OPCODE_EOF = 0;
+    public static final int REDIS_MODULE_OPCODE_SINT = 1;
+    public static final int REDIS_MODULE_OPCODE_UINT = 2;
+    public static final int REDIS_MODULE_OPCODE_FLOAT = 3;
+    public static final int REDIS_MODULE_OPCODE_DOUBLE = 4;
+    public static final int REDIS_MODULE_OPCODE_STRING = 5;
+
     /*
      * 整型数字的编码方式
      */
@@ -84,25 +144,171 @@ public class ParseRDB {
     public static final int REDIS_RDB_ENC_LZF = 3; /* string compressed with FASTLZ
                                                     */
 
+    /*
+     * value的解析方式
+     */
+    public static final int VALUE_DECODE = 0; /* 立即解析为Java对象 */
+
+    public static final int VALUE_LAZY = 1; /* 只保存原始编码, 调用Entry.getValue()时才解析 */
+
+    public static final int VALUE_SKIP = 2; /* 只读取key, type, db和过期时间, value根据长度直接跳过 */
+
+    /*
+     * 读完key就返回, value留在输入中, 由RDBWriter.write(Entry, ParseRDB)按块直接复制到输出,
+     * 不在内存中保存整个value; 没有写出时下一次next()直接跳过
+     */
+    public static final int VALUE_TRANSFER = 3;
+
+    /* 非binary模式下String和字节之间转换使用的字符集, RDBWriter写出时使用同一个 */
+    public static final Charset CHARSET = StandardCharsets.UTF_8;
+
     private static void ERROR(String msg, Object... args) {
         throw new RuntimeException(String.format(msg, args));
     }
 
-    private static final int BUFFER_SIZE = 8 * 1024;
+    RDBInput input = null;
+
+    int valueMode = VALUE_DECODE;
 
-    FileChannel filech = null;
+    /* key和value保持为byte数组, 不做字符集转换 */
+    boolean binary = false;
 
-    ByteBuffer bytebuffer = null;
+    /* accept()期间不为null, value通过回调返回而不是放到Entry中 */
+    private RDBVisitor visitor;
+
+    /* 解析stream时的回调, 为null时stream直接跳过 */
+    private StreamVisitor streamVisitor;
+
+    /* 回调stream消息时复用 */
+    private StreamFields streamFields;
+
+    /* VALUE_LAZY模式下用来记录value的原始编码, VALUE_TRANSFER模式下用来把value转给RDBWriter */
+    private CaptureRDBInput capture;
+
+    /* VALUE_TRANSFER模式下还留在输入中的value的类型, 没有时为-1 */
+    private int pendingType = -1;
+
+    /* 解析字符串时复用的缓冲区, 不够大时扩容 */
+    private byte[] strBuf = new byte[64];
+
+    /* 解析LZF字符串时存放压缩数据的缓冲区 */
+    private byte[] lzfBuf = new byte[64];
+
+    /* 当前数据库编号, 由REDIS_SELECTDB切换 */
+    int db = 0;
+
+    /* 最近一次REDIS_RESIZEDB给出的当前数据库的key个数和带过期时间的key个数, 没有时为-1 */
+    long dbSize = -1;
+    long expiresSize = -1;
+
+    /* 所有REDIS_RESIZEDB给出的key个数之和 */
+    long keyCountHint = 0;
+
+    /* REDIS_AUX辅助字段, 按文件中的顺序 */
+    private final Map<String, String> aux = new LinkedHashMap<String, String>();
+
+    /* REDIS_FUNCTION中的函数库代码, 按文件中的顺序 */
+    private final List<byte[]> functions = new ArrayList<byte[]>();
+
+    /* 按长度预分配集合时的上限, 避免错误的长度导致分配过大的内存 */
+    private static final int MAX_PRESIZE = 1 << 20;
+
+    /* 读到这个位置后next()返回null, 并行解析时每个线程只负责文件的一段 */
+    long limit = Long.MAX_VALUE;
+
+    /* 最近一次loadLength()读到的是否为特殊编码(REDIS_RDB_ENCVAL), 而不是长度 */
+    boolean isencoded;
+
+    /* RDB文件的版本号 */
+    int version;
+
+    /* 是否在读到REDIS_EOF时校验文件末尾的CRC64, 默认校验 */
+    private boolean verifyChecksum = true;
+
+    /* 数据源正在计算校验和 */
+    private boolean checking = false;
+
+    /* 过期时间早于这个时间(毫秒)的key直接跳过, 0表示不过滤 */
+    private long expireBefore;
+
+    /* 上一次loadEntry()跳过了一个已过期的key */
+    private boolean expiredSkipped;
+
+    /* 因为已过期被跳过的key的个数 */
+    private long expiredCount;
+
+    /* 解析double时复用的缓冲区, 长度字段只有一个字节, 最多255 */
+    private final byte[] doubleBuf = new byte[256];
 
     /*
      * 对Redis数据的封装
      */
     public static class Entry {
         public String key;
+        /* binary模式下key不转换为String, 保存在keyBytes中 */
+        public byte[] keyBytes;
+        /*
+         * binary模式下, REDIS_STRING的value为byte[], 集合中的元素(包括hash的field)为ByteString;
+         * 否则都是String
+         */
         public Object value;
         public int type;	/* redis数据类型 */
         byte success;
-        public int expire; /* 过期时间 , milliseconds*/
+        public long expire; /* 过期时间(毫秒时间戳), 0表示不过期 */
+        public long idle; /* LRU空闲时间(秒), 没有时为-1 */
+        public int freq; /* LFU访问频率(0~255), 没有时为-1 */
+        public int db;	/* 所在的数据库编号 */
+        byte[] raw;	/* VALUE_LAZY模式下value的原始编码 */
+        boolean binary;	/* 是否为binary模式下解析的 */
+
+        /* binary模式下key在第一次调用时才转换为String */
+        public String getKey() {
+            if (key == null && keyBytes != null) {
+                key = new String(keyBytes, CHARSET);
+            }
+            return key;
+        }
+
+        /* 通过next(Entry)重复使用时, 保留上一次创建的集合, 清空后再次填充 */
+        boolean reusable;
+        ArrayList<Object> listPool;
+        HashSet<Object> setPool;
+        HashMap<Object, Object> mapPool;
+        /* setPool和mapPool创建时预分配的元素个数 */
+        int setPoolSize;
+        int mapPoolSize;
+
+        /* 清空上一个entry的内容, 集合对象保留在pool中 */
+        void reset() {
+            key = null;
+            keyBytes = null;
+            value = null;
+            raw = null;
+            type = -1;
+            success = 0;
+            expire = 0;
+            idle = -1;
+            freq = -1;
+            db = 0;
+        }
+
+        /* 取value, VALUE_LAZY模式下第一次调用时才解析 */
+        public Object getValue() {
+            if (value == null && raw != null) {
+                ParseRDB parser = new ParseRDB();
+                parser.binary = binary;
+                parser.initRange(new ArrayRDBInput(raw), db, Long.MAX_VALUE);
+                if (!parser.loadValue(this)) {
+                    ERROR("Error reading entry value");
+                }
+            }
+            return value;
+        }
+
+        /* VALUE_LAZY模式下value在RDB中的原始编码, 其他模式下为null */
+        public byte[] getRaw() {
+            return raw;
+        }
     }
 
 
@@ -126,9 +332,10 @@ public class ParseRDB {
             ERROR("Wrong signature in header\n");
         }
         dump_version = (int) strtol(buf, 5, 10);
-        if (dump_version < 1 || dump_version > 6) {
+        if (dump_version < 1 || dump_version > 11) {
             ERROR("Unknown RDB format version: %d\n", dump_version);
         }
+        version = dump_version;
         return true;
     }
 
@@ -150,30 +357,7 @@ public class ParseRDB {
         if (num < 0) {
             ERROR("Num must bigger than zero");
         }
-
-        int nget = Math.min(bytebuffer.remaining(), num);
-        bytebuffer.get(buf, start, nget);
-        while (nget < num) {
-            start = start + nget;
-            num = num - nget;
-            bytebuffer.clear();
-            int nRead = 0;
-            while (nRead == 0) {
-                try {
-                    nRead = filech.read(bytebuffer);
-                } catch (IOException e) {
-                    return false;
-                }
-                if (nRead == -1) {
-                    return false;
-                }
-            }
-            bytebuffer.position(0);
-            bytebuffer.limit(nRead);
-            nget = Math.min(bytebuffer.remaining(), num);
-            bytebuffer.get(buf, start, nget);
-        }
-        return true;
+        return input.readBytes(buf, start, num);
     }
 
     /**
@@ -204,13 +388,18 @@ public class ParseRDB {
         return 0;
     }
 
+    /* 是否为支持的数据类型或者REDIS_SELECTDB等特殊标示 */
+    private static boolean isKnownType(int t) {
+        return t <= 5 || t == REDIS_MODULE_2 || (t >= 9 && t <= REDIS_STREAM_LISTPACKS_3)
+                || t == REDIS_FUNCTION || t >= REDIS_MODULE_AUX;
+    }
+
     /* 解析数据类型，占用一个字节  **/
     private boolean loadType(Entry e) {
         /* this byte needs to qualify as type */
-        byte[] tt = new byte[1];
-        if (readBytes(tt, 0, 1)) {
-            int t = (0x00ff & tt[0]);
-            if (t <= 4 || (t >= 9 && t <= 13) || t >= 252) {
+        int t = input.read();
+        if (t != -1) {
+            if (isKnownType(t)) {
                 e.type = t;
                 return true;
             } else {
@@ -226,133 +415,428 @@ public class ParseRDB {
         byte[] tt = new byte[1];
         if (readBytes(tt, 0, -1)) {
             int t = (0x00ff & tt[0]);
-            if (t <= 4 || (t >= 9 && t <= 13) || t >= 252){
+            if (isKnownType(t)){
                 return t;
             }
         }
         return -1;
     }
 
-    /* 获取过期时间, byte数组需转换为Long */
-    byte[] processTime(int type) {
-    	int timelen = (type == REDIS_EXPIRETIME_FC) ? 8 : 4;
-        byte[] t = new byte[8];
-        if (readBytes(t, 0, timelen)) {
-            return t;
-        } else {
-            ERROR("Could not read time");
+    /* REDIS_RESIZEDB: 当前数据库的key个数和带过期时间的key个数, 用于预分配 */
+    private void processResizeDb() {
+        long size = loadLength();
+        long expires = loadLength();
+        if (size == REDIS_RDB_LENERR || expires == REDIS_RDB_LENERR) {
+            ERROR("Error reading resizedb sizes");
+        }
+        dbSize = size;
+        expiresSize = expires;
+        keyCountHint += size;
+        if (visitor != null) {
+            visitor.onResizeDb(db, size, expires);
         }
-        /* failure */
-        return null;
     }
 
-    static class Pointer<T> {
-        T key;
+    /* REDIS_AUX: 两个字符串, 字段名和值 */
+    private void processAux() {
+        String key = loadStringObject();
+        String value = key == null ? null : loadStringObject();
+        if (value == null) {
+            ERROR("Error reading aux field");
+        }
+        aux.put(key, value);
+        if (visitor != null) {
+            visitor.onAux(key, value);
+        }
+    }
 
-        T get() {
-            return key;
+    /* REDIS_MODULE_AUX: 模块id, 保存时机, 然后是模块序列化的数据, 直接跳过 */
+    private void skipModuleAux() {
+        long moduleId = loadLength();
+        long whenOpcode = loadLength();
+        if (moduleId == REDIS_RDB_LENERR || whenOpcode != REDIS_MODULE_OPCODE_UINT
+                || loadLength() == REDIS_RDB_LENERR || !skipModuleValue()) {
+            ERROR("Error skipping module aux data of module %s", moduleTypeName(moduleId));
+        }
+    }
+
+    /* 跳过模块序列化的数据, 每个值前面是它的类型, 不需要加载模块就可以跳过 */
+    boolean skipModuleValue() {
+        while (true) {
+            long opcode = loadLength();
+            switch ((int) opcode) {
+                case REDIS_MODULE_OPCODE_EOF:
+                    return true;
+                case REDIS_MODULE_OPCODE_SINT:
+                case REDIS_MODULE_OPCODE_UINT:
+                    if (loadLength() == REDIS_RDB_LENERR)
+                        return false;
+                    break;
+                case REDIS_MODULE_OPCODE_FLOAT:
+                    if (!input.skip(4))
+                        return false;
+                    break;
+                case REDIS_MODULE_OPCODE_DOUBLE:
+                    if (!input.skip(8))
+                        return false;
+                    break;
+                case REDIS_MODULE_OPCODE_STRING:
+                    if (!skipStringObject())
+                        return false;
+                    break;
+                default:
+                    ERROR("Unknown module opcode (%d)", opcode);
+                    return false;
+            }
+        }
+    }
+
+    /* 模块id的高54位是9个字符的类型名, 每个字符6位, 低10位是编码版本 */
+    static String moduleTypeName(long moduleId) {
+        String charset = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        char[] name = new char[9];
+        long id = moduleId >>> 10;
+        for (int j = 8; j >= 0; j--) {
+            name[j] = charset.charAt((int) (id & 63));
+            id >>>= 6;
+        }
+        return new String(name);
+    }
+
+    /*
+     * 处理key之间的元数据(REDIS_AUX, REDIS_MODULE_AUX, REDIS_FUNCTION, REDIS_RESIZEDB)
+     * @return type不是元数据时返回false
+     */
+    private boolean processMetadata(int type) {
+        switch (type) {
+            case REDIS_AUX:
+                processAux();
+                return true;
+            case REDIS_MODULE_AUX:
+                skipModuleAux();
+                return true;
+            case REDIS_FUNCTION:
+                /* 函数库的代码, 保留下来以便重新写出 */
+                byte[] code = loadStringObjectBytes();
+                if (code == null) {
+                    ERROR("Error reading function library");
+                }
+                functions.add(code);
+                return true;
+            case REDIS_RESIZEDB:
+                processResizeDb();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /* stream中的长度和ID字段, 读不到时直接抛出异常 */
+    private long streamLength() {
+        long len = loadLength();
+        if (len == REDIS_RDB_LENERR) {
+            ERROR("Unexpected end of stream");
+        }
+        return len;
+    }
+
+    /* 16字节的原始ID: 毫秒和序号, 都是big endian */
+    private final byte[] streamId = new byte[16];
+
+    private void readStreamId() {
+        if (!readBytes(streamId, 0, 16)) {
+            ERROR("Unexpected end of stream");
+        }
+    }
+
+    private static long readBE64(byte[] buf, int pos) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (buf[pos + i] & 0x00ff);
+        }
+        return v;
+    }
+
+    /**
+     * 解析或跳过stream类型的value, 每次只读入一个listpack节点, 内存占用和stream的大小无关
+     * @param v 为null时只跳过, 不读入listpack节点
+     */
+    private boolean loadStream(int type, Entry e, StreamVisitor v) {
+        if (v != null) {
+            v.startStream(e);
+        }
+        long nodes = streamLength();
+        for (long i = 0; i < nodes; i++) {
+            if (v == null) {
+                if (!skipStringObject() || !skipStringObject())
+                    return false;
+                continue;
+            }
+            /* 节点的key为master ID, 节点中的消息ID是相对于它的差值 */
+            byte[] nodeKey = loadStringObjectBytes();
+            if (nodeKey == null || nodeKey.length != 16) {
+                ERROR("Stream node key must be 16 bytes");
+            }
+            byte[] lp = loadStringObjectBytes();
+            if (lp == null) {
+                ERROR("Error reading stream listpack");
+            }
+            visitStreamNode(readBE64(nodeKey, 0), readBE64(nodeKey, 8), new ListPack(lp), v);
+        }
+
+        long length = streamLength();
+        long lastMs = streamLength();
+        long lastSeq = streamLength();
+        long firstMs = -1, firstSeq = -1, maxDeletedMs = -1, maxDeletedSeq = -1, entriesAdded = -1;
+        if (type != REDIS_STREAM_LISTPACKS) {
+            firstMs = streamLength();
+            firstSeq = streamLength();
+            maxDeletedMs = streamLength();
+            maxDeletedSeq = streamLength();
+            entriesAdded = streamLength();
+        }
+        if (v != null) {
+            v.onStreamInfo(length, lastMs, lastSeq, firstMs, firstSeq,
+                    maxDeletedMs, maxDeletedSeq, entriesAdded);
+        }
+
+        long groups = streamLength();
+        for (long i = 0; i < groups; i++) {
+            String name = null;
+            if (v != null) {
+                name = loadStringObject();
+            } else if (!skipStringObject()) {
+                return false;
+            }
+            long groupMs = streamLength();
+            long groupSeq = streamLength();
+            long entriesRead = type != REDIS_STREAM_LISTPACKS ? streamLength() : -1;
+            if (v != null) {
+                v.onGroup(name, groupMs, groupSeq, entriesRead);
+            }
+            /* 消费组的PEL: 原始ID, 投递时间(毫秒, little endian), 投递次数 */
+            long pending = streamLength();
+            for (long j = 0; j < pending; j++) {
+                readStreamId();
+                long deliveryTime = input.readInt64LE();
+                long deliveryCount = streamLength();
+                if (v != null) {
+                    v.onGroupPending(readBE64(streamId, 0), readBE64(streamId, 8),
+                            deliveryTime, deliveryCount);
+                }
+            }
+            long consumers = streamLength();
+            for (long j = 0; j < consumers; j++) {
+                String consumer = null;
+                if (v != null) {
+                    consumer = loadStringObject();
+                } else if (!skipStringObject()) {
+                    return false;
+                }
+                long seenTime = input.readInt64LE();
+                long activeTime = type == REDIS_STREAM_LISTPACKS_3 ? input.readInt64LE() : -1;
+                if (v != null) {
+                    v.onConsumer(consumer, seenTime, activeTime);
+                }
+                /* 消费者的PEL只有ID, 其他信息在消费组的PEL中 */
+                long owned = streamLength();
+                for (long k = 0; k < owned; k++) {
+                    readStreamId();
+                    if (v != null) {
+                        v.onConsumerPending(readBE64(streamId, 0), readBE64(streamId, 8));
+                    }
+                }
+            }
+        }
+        if (v != null) {
+            v.endStream(e);
+        }
+        return true;
+    }
+
+    /*
+     * 一个listpack节点: count, deleted, master字段个数, master字段..., 0
+     * 然后是每条消息: flags, ms差值, seq差值, [字段个数, 字段, 值...] 或 [值...](SAMEFIELDS), lp-count
+     */
+    private void visitStreamNode(long masterMs, long masterSeq, ListPack lp, StreamVisitor v) {
+        if (streamFields == null) {
+            streamFields = new StreamFields();
+        }
+        StreamFields fields = streamFields;
+        nextStreamElement(lp);	/* count */
+        nextStreamElement(lp);	/* deleted */
+        int masterCount = (int) streamLong(nextStreamElement(lp));
+        fields.reset(lp.getArray(), masterCount);
+        for (int i = 0; i < masterCount; i++) {
+            fields.setMaster(i, nextStreamElement(lp));
+        }
+        nextStreamElement(lp);	/* master entry结束标记 */
+        while (lp.next()) {
+            int flags = (int) streamLong(lp);
+            long ms = masterMs + streamLong(nextStreamElement(lp));
+            long seq = masterSeq + streamLong(nextStreamElement(lp));
+            if ((flags & STREAM_ITEM_FLAG_SAMEFIELDS) != 0) {
+                fields.start(masterCount);
+                for (int i = 0; i < masterCount; i++) {
+                    fields.copyMaster(i);
+                    fields.setElement(i * 2 + 1, nextStreamElement(lp));
+                }
+            } else {
+                int count = (int) streamLong(nextStreamElement(lp));
+                fields.start(count);
+                for (int i = 0; i < count * 2; i++) {
+                    fields.setElement(i, nextStreamElement(lp));
+                }
+            }
+            nextStreamElement(lp);	/* lp-count, 反向遍历用 */
+            if ((flags & STREAM_ITEM_FLAG_DELETED) == 0) {
+                v.onEntry(ms, seq, fields);
+            }
+        }
+    }
+
+    private static ListPack nextStreamElement(ListPack lp) {
+        if (!lp.next()) {
+            ERROR("Truncated stream listpack");
         }
+        return lp;
+    }
 
-        void set(T t) {
-            this.key = t;
+    /* stream中的计数和ID差值都是整数编码, 字符串编码的按十进制解析 */
+    private static long streamLong(PackedList lp) {
+        if (lp.isInteger()) {
+            return lp.getLong();
         }
+        return Long.parseLong(PackedList.byteToString(lp.getArray(), lp.getOffset(), lp.getLength()));
     }
 
-    // RDB version 6 下为 big endian format
-    private long ntohl(byte[] buf) {
-        return ((buf[0] & 0x00ff) << 24) + ((buf[1] & 0x00ff) << 16)
-                + ((buf[2] & 0x00ff) << 8) + ((buf[3] & 0x00ff));
+    /* 获取过期时间, FC为8字节毫秒, FD为4字节秒, 都是little endian, 统一返回毫秒 */
+    long processTime(int type) {
+        if (type == REDIS_EXPIRETIME_FC) {
+            return input.readInt64LE();
+        }
+        return (input.readInt32LE() & 0xffffffffL) * 1000;
     }
 
-    /* 解析第一个字节，返回值表示此段数据占用字节的长度 **/
-    private long loadLength(Pointer<Boolean> isencoded) {
-        byte[] buf = new byte[4];
-        int type;
+    /* 解析第一个字节，返回值表示此段数据占用字节的长度, 是否为特殊编码记录在isencoded中 **/
+    long loadLength() {
+        int b;
 
-        if (isencoded != null)
-            isencoded.set(false);
-        if (!readBytes(buf, 0, 1))
+        isencoded = false;
+        if ((b = input.read()) == -1)
             return REDIS_RDB_LENERR;
-        type = (buf[0] & 0x00C0) >> 6;
+        int type = (b & 0x00C0) >> 6;
         if (type == REDIS_RDB_6BITLEN) {
             /* Read a 6 bit len */
-            return buf[0] & 0x003F;
+            return b & 0x003F;
         } else if (type == REDIS_RDB_ENCVAL) {
             /* Read a 6 bit len encoding type */
-            if (isencoded != null)
-                isencoded.set(true);
-            return buf[0] & 0x003F;
+            isencoded = true;
+            return b & 0x003F;
         } else if (type == REDIS_RDB_14BITLEN) {
             /* Read a 14 bit len */
-            if (!readBytes(buf, 1, 1))
-                return REDIS_RDB_LENERR;
-            return ((buf[0] & 0x003F) << 8) | (buf[1] & 0x00ff);
-        } else {
-            /* Read a 32 bit len */
-            if (!readBytes(buf, 0, 4))
+            int b1;
+            if ((b1 = input.read()) == -1)
                 return REDIS_RDB_LENERR;
-            return ntohl(buf);
+            return ((b & 0x003F) << 8) | b1;
+        } else if (b == REDIS_RDB_32BITLEN_FLAG) {
+            /* Read a 32 bit len, RDB version 6 下为 big endian format */
+            return input.readUInt32BE();
+        } else if (b == REDIS_RDB_64BITLEN_FLAG) {
+            /* Read a 64 bit len, big endian */
+            return (input.readUInt32BE() << 32) | input.readUInt32BE();
         }
+        ERROR("Unknown length encoding (0x%02x)", b);
+        return REDIS_RDB_LENERR;
     }
 
-    /* 解析一个整型数据  **/
-    String loadIntegerObject(int enctype) {
-        byte[] enc = new byte[4];
-        long val;
+    /* 解析一个整型数据, little endian的有符号整数  **/
+    long loadIntegerValue(int enctype) {
         if (enctype == REDIS_RDB_ENC_INT8) {
-            if (!readBytes(enc, 0, 1))
-                return null;
-            val = (0x00ff & enc[0]);
+            return input.readInt8();
         } else if (enctype == REDIS_RDB_ENC_INT16) {
-            if (!readBytes(enc, 0, 2))
-                return null;
-            val = ((enc[1] & 0x00ff) << 8) | (enc[0] & 0x00ff);
+            return input.readInt16LE();
         } else if (enctype == REDIS_RDB_ENC_INT32) {
-            if (!readBytes(enc, 0, 4))
-                return null;
-            val = ((enc[3] & 0x00ff) << 24) + ((enc[2] & 0x00ff) << 16)
-                    + ((enc[1] & 0x00ff) << 8) + ((enc[0] & 0x00ff));
-        } else {
-            ERROR("Unknown integer encoding (0x%02x)", enctype);
-            return null;
+            return input.readInt32LE();
+        }
+        ERROR("Unknown integer encoding (0x%02x)", enctype);
+        return 0;
+    }
+
+    /* 整数的十进制表示, 不经过String */
+    static byte[] toDecimalBytes(long v) {
+        if (v == Long.MIN_VALUE) {
+            return chars2bytes(String.valueOf(v));
+        }
+        int n = v < 0 ? 2 : 1;
+        for (long t = Math.abs(v); t >= 10; t /= 10) {
+            n++;
+        }
+        byte[] b = new byte[n];
+        long t = Math.abs(v);
+        for (int i = n - 1; i >= 0; i--) {
+            b[i] = (byte) ('0' + t % 10);
+            t /= 10;
+        }
+        if (v < 0) {
+            b[0] = '-';
+        }
+        return b;
+    }
+
+    String loadIntegerObject(int enctype) {
+        return String.valueOf(loadIntegerValue(enctype));
+    }
+
+    /* 返回至少len字节的缓冲区, 不够大时按2倍扩容 */
+    private static byte[] grow(byte[] buf, long len) {
+        if (len <= buf.length) {
+            return buf;
         }
-        return String.valueOf(val);
+        return new byte[(int) Math.max(len, Math.min(buf.length * 2L, Integer.MAX_VALUE - 8))];
     }
 
     String loadLzfStringObject() {
-        byte[] s = loadLzfStringObjectBytes();
-        try {
-            return new String(s, "ASCII");
-        } catch (UnsupportedEncodingException e) {
-            return new String(s);
+        long slen, clen;
+        if ((clen = loadLength()) == REDIS_RDB_LENERR)
+            return null;
+        if ((slen = loadLength()) == REDIS_RDB_LENERR)
+            return null;
+
+        /* 压缩数据和解压后的数据都放在复用的缓冲区中, 只分配最终的String */
+        lzfBuf = grow(lzfBuf, clen);
+        if (!readBytes(lzfBuf, 0, (int) clen)) {
+            return null;
         }
+        strBuf = grow(strBuf, slen);
+        LZFCompress.expand(lzfBuf, 0, (int) clen, strBuf, 0, (int) slen);
+        return new String(strBuf, 0, (int) slen, CHARSET);
     }
 
     byte[] loadLzfStringObjectBytes() {
         long slen, clen;
-        if ((clen = loadLength(null)) == REDIS_RDB_LENERR)
+        if ((clen = loadLength()) == REDIS_RDB_LENERR)
             return null;
-        if ((slen = loadLength(null)) == REDIS_RDB_LENERR)
+        if ((slen = loadLength()) == REDIS_RDB_LENERR)
             return null;
 
-        byte[] c = new byte[(int) clen];
-
-        if (!readBytes(c, 0, (int) clen)) {
+        /* 压缩数据放在复用的缓冲区中, 解压后的数据会被返回, 需要单独分配 */
+        lzfBuf = grow(lzfBuf, clen);
+        if (!readBytes(lzfBuf, 0, (int) clen)) {
             return null;
         }
 
         byte[] s = new byte[(int) slen];
-        LZFCompress.expand(c, 0, (int) clen, s, 0, (int) slen);
+        LZFCompress.expand(lzfBuf, 0, (int) clen, s, 0, (int) slen);
         return s;
     }
 
     /* returns NULL when not processable, char* when valid */
     String loadStringObject() {
-        Pointer<Boolean> isencoded = new Pointer<Boolean>();
         long len;
 
-        len = loadLength(isencoded);
-        if (isencoded.get()) {
+        len = loadLength();
+        if (isencoded) {
             switch ((int) len) {
                 case REDIS_RDB_ENC_INT8:
                 case REDIS_RDB_ENC_INT16:
@@ -370,20 +854,24 @@ public class ParseRDB {
         if (len == REDIS_RDB_LENERR)
             return null;
 
-        byte[] buf = new byte[(int) len];
-        if (!readBytes(buf, 0, (int) len)) {
+        strBuf = grow(strBuf, len);
+        if (!readBytes(strBuf, 0, (int) len)) {
             return null;
         }
-        return new String(buf);
+        return new String(strBuf, 0, (int) len, CHARSET);
     }
 
     byte[] loadStringObjectBytes() {
-        Pointer<Boolean> isencoded = new Pointer<Boolean>();
         long len;
 
-        len = loadLength(isencoded);
-        if (isencoded.get()) {
+        len = loadLength();
+        if (isencoded) {
             switch ((int) len) {
+                case REDIS_RDB_ENC_INT8:
+                case REDIS_RDB_ENC_INT16:
+                case REDIS_RDB_ENC_INT32:
+                    /* 整数编码的字符串还原为十进制数字 */
+                    return toDecimalBytes(loadIntegerValue((int) len));
                 case REDIS_RDB_ENC_LZF:
                     return loadLzfStringObjectBytes();
                 default:
@@ -403,121 +891,666 @@ public class ParseRDB {
         return buf;
     }
 
-    /* double数据 **/
-    Double loadDoubleValue() {
-        byte[] buf = new byte[256];
-        byte[] lenArray = new byte[1];
-        Double val;
+    /* 10的n次方, 在double中都能精确表示 */
+    private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6,
+            1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17,
+            1e18, 1e19, 1e20, 1e21, 1e22 };
 
-        if (!readBytes(lenArray, 0, 1))
-            return null;
-
-        int len = (0x00ff & lenArray[0]);
+    /* double数据, 以字符串形式存储, 第一个字节为长度 **/
+    double loadDoubleValue() {
+        int len = input.read();
         switch (len) {
+            case -1:
+                ERROR("Could not read double value");
+                return 0;
             case 255:
-                val = Double.NEGATIVE_INFINITY;
-                return val;
+                return Double.NEGATIVE_INFINITY;
             case 254:
-                val = Double.POSITIVE_INFINITY;
-                return val;
+                return Double.POSITIVE_INFINITY;
             case 253:
-                val = Double.NaN;
-                return val;
+                return Double.NaN;
             default:
-                if (!readBytes(buf, 0, len)) {
-                    return null;
+                if (!readBytes(doubleBuf, 0, len)) {
+                    ERROR("Could not read double value");
                 }
-                buf[len] = '\0';
-                String str = "";
-                try {
-                    str = new String(buf, 0, len, "ASCII");
-                } catch (UnsupportedEncodingException e) {
-                    str = new String(buf, 0, len);
-                }
-                return Double.parseDouble(str);
+                return parseDouble(doubleBuf, 0, len);
         }
     }
 
     /*
-     * 根据RDB中存储的Redis类型, 解析为相对应的Java数据类型
-     * */
-    boolean loadPair(Entry e) {
-        int i;
-        /* read key first */
-        String key = loadStringObject();
-        if (key != null) {
-            e.key = key;
-        } else {
-            ERROR("Error reading entry key");
-            return false;
+     * 整数和较短的小数(尾数不超过2^53, 小数位不超过22位)直接计算, 一次除法的结果和
+     * Double.parseDouble一致; 其他情况(科学计数法, 17位有效数字等)才转成String解析
+     */
+    static double parseDouble(byte[] buf, int off, int len) {
+        int i = off;
+        int end = off + len;
+        boolean negative = false;
+        if (len > 0 && buf[off] == '-') {
+            negative = true;
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = -1;
+        for (; i < end; i++) {
+            byte c = buf[i];
+            if (c >= '0' && c <= '9') {
+                if (++digits > 16) {
+                    break;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (fraction >= 0) {
+                    fraction++;
+                }
+            } else if (c == '.' && fraction < 0) {
+                fraction = 0;
+            } else {
+                break;
+            }
+        }
+        if (i == end && digits > 0 && mantissa <= (1L << 53) && fraction <= 22) {
+            double val = fraction > 0 ? mantissa / POW10[fraction] : mantissa;
+            return negative ? -val : val;
+        }
+        String str;
+        try {
+            str = new String(buf, off, len, "ASCII");
+        } catch (UnsupportedEncodingException e) {
+            str = new String(buf, off, len);
+        }
+        /* redis用strtod解析, ziplist中的无穷大保存为"inf"和"-inf" */
+        if (str.equalsIgnoreCase("inf") || str.equalsIgnoreCase("+inf")) {
+            return Double.POSITIVE_INFINITY;
+        } else if (str.equalsIgnoreCase("-inf")) {
+            return Double.NEGATIVE_INFINITY;
+        } else if (str.equalsIgnoreCase("nan")) {
+            return Double.NaN;
         }
+        return Double.parseDouble(str);
+    }
 
-        long length = 0;
-        if (e.type == REDIS_LIST || e.type == REDIS_SET || e.type == REDIS_ZSET
-                || e.type == REDIS_HASH) {
-            if ((length = loadLength(null)) == REDIS_RDB_LENERR) {
-                ERROR("Error reading %d length", e.type);
-                return false;
+    /* 跳过一个字符串, 只读取长度, 不读取和解压内容 */
+    boolean skipStringObject() {
+        long len = loadLength();
+        if (isencoded) {
+            switch ((int) len) {
+                case REDIS_RDB_ENC_INT8:
+                    return input.skip(1);
+                case REDIS_RDB_ENC_INT16:
+                    return input.skip(2);
+                case REDIS_RDB_ENC_INT32:
+                    return input.skip(4);
+                case REDIS_RDB_ENC_LZF:
+                    long clen = loadLength();
+                    if (clen == REDIS_RDB_LENERR || loadLength() == REDIS_RDB_LENERR)
+                        return false;
+                    return input.skip(clen);
+                default:
+                    ERROR("Unknown string encoding (0x%02x)", len);
+                    return false;
             }
         }
+        if (len == REDIS_RDB_LENERR)
+            return false;
+        return input.skip(len);
+    }
 
-        switch (e.type) {
+    boolean skipDoubleValue() {
+        int len = input.read();
+        if (len == -1)
+            return false;
+        if (len >= 253)	/* NaN, +inf, -inf */
+            return true;
+        return input.skip(len);
+    }
+
+    /* 跳过一个value, 集合类型只读取每个元素的长度 */
+    boolean skipValue(int type) {
+        long length, i;
+        switch (type) {
             case REDIS_STRING:
-                e.value = loadStringObject();
-                if (e.value == null) {
-                    ERROR("Error reading entry value");
+            case REDIS_HASH_ZIPMAP:
+            case REDIS_LIST_ZIPLIST:
+            case REDIS_SET_INTSET:
+            case REDIS_ZSET_ZIPLIST:
+            case REDIS_HASH_ZIPLIST:
+            case REDIS_HASH_LISTPACK:
+            case REDIS_ZSET_LISTPACK:
+            case REDIS_SET_LISTPACK:
+                /* 压缩编码的类型整体存储为一个字符串 */
+                return skipStringObject();
+            case REDIS_LIST_QUICKLIST:
+                if ((length = loadLength()) == REDIS_RDB_LENERR)
                     return false;
+                for (i = 0; i < length; i++) {
+                    if (!skipStringObject())
+                        return false;
                 }
-                break;
+                return true;
+            case REDIS_LIST_QUICKLIST_2:
+                if ((length = loadLength()) == REDIS_RDB_LENERR)
+                    return false;
+                for (i = 0; i < length; i++) {
+                    if (loadLength() == REDIS_RDB_LENERR || !skipStringObject())
+                        return false;
+                }
+                return true;
+            case REDIS_ZSET_2:
+                if ((length = loadLength()) == REDIS_RDB_LENERR)
+                    return false;
+                for (i = 0; i < length; i++) {
+                    if (!skipStringObject() || !input.skip(8))
+                        return false;
+                }
+                return true;
+            case REDIS_MODULE_2:
+                /* 模块id, 然后是模块序列化的数据 */
+                return loadLength() != REDIS_RDB_LENERR && skipModuleValue();
+            case REDIS_STREAM_LISTPACKS:
+            case REDIS_STREAM_LISTPACKS_2:
+            case REDIS_STREAM_LISTPACKS_3:
+                return loadStream(type, null, null);
+            case REDIS_LIST:
+            case REDIS_SET:
+                if ((length = loadLength()) == REDIS_RDB_LENERR)
+                    return false;
+                for (i = 0; i < length; i++) {
+                    if (!skipStringObject())
+                        return false;
+                }
+                return true;
+            case REDIS_ZSET:
+                if ((length = loadLength()) == REDIS_RDB_LENERR)
+                    return false;
+                for (i = 0; i < length; i++) {
+                    if (!skipStringObject() || !skipDoubleValue())
+                        return false;
+                }
+                return true;
+            case REDIS_HASH:
+                if ((length = loadLength()) == REDIS_RDB_LENERR)
+                    return false;
+                for (i = 0; i < length * 2; i++) {
+                    if (!skipStringObject())
+                        return false;
+                }
+                return true;
+            default:
+                ERROR("Type not implemented");
+                return false;
+        }
+    }
+
+    /* scanEntry()读到的entry的起始位置(包括过期时间)和key */
+    long entryStart;
+    byte[] entryKey;
+
+    /**
+     * 扫描下一个entry, 只读取type和length, 跳过value的内容, 用于切分文件和建立索引
+     * REDIS_SELECTDB会被直接处理, 起始位置记录在entryStart中
+     * @param readKey 是否把key读到entryKey中, 否则key也直接跳过
+     * @return entry的类型, 文件结束时返回REDIS_EOF
+     */
+    int scanEntry(boolean readKey) {
+        while (true) {
+            entryStart = input.position();
+            int type = input.read();
+            if (type == -1) {
+                ERROR("Unexpected end of file at %d", entryStart);
+            }
+            if (type == REDIS_EOF) {
+                return type;
+            }
+            if (type == REDIS_SELECTDB) {
+                long len = loadLength();
+                if (len == REDIS_RDB_LENERR) {
+                    ERROR("Error reading database number");
+                }
+                /* 和next()一样检查范围, RDBIndex只用8位保存数据库编号 */
+                if (len > 63) {
+                    ERROR("Database number out of range (%d)", len);
+                }
+                db = (int) len;
+                continue;
+            }
+            if (processMetadata(type)) {
+                continue;
+            }
+            /* 过期时间, LRU和LFU信息都在key的类型之前 */
+            while (type == REDIS_EXPIRETIME_FD || type == REDIS_EXPIRETIME_FC
+                    || type == REDIS_IDLE || type == REDIS_FREQ) {
+                if (type == REDIS_IDLE) {
+                    loadLength();
+                } else if (type == REDIS_FREQ) {
+                    input.read();
+                } else {
+                    processTime(type);
+                }
+                type = input.read();
+            }
+            if (readKey) {
+                if ((entryKey = loadStringObjectBytes()) == null) {
+                    ERROR("Error reading entry key at %d", entryStart);
+                }
+            } else if (!skipStringObject()) {
+                ERROR("Error skipping entry key at %d", entryStart);
+            }
+            if (!skipValue(type)) {
+                ERROR("Error skipping entry at %d", entryStart);
+            }
+            return type;
+        }
+    }
+
+    /*
+     * 根据RDB中存储的Redis类型, 解析为相对应的Java数据类型
+     * */
+    boolean loadPair(Entry e) {
+        /* read key first */
+        e.binary = binary;
+        if (binary) {
+            e.keyBytes = loadStringObjectBytes();
+        } else {
+            e.key = loadStringObject();
+        }
+        if (e.key == null && e.keyBytes == null) {
+            ERROR("Error reading entry key");
+            return false;
+        }
+
+        if (visitor != null) {
+            visitor.startKey(e);
+            if (!visitValue(e)) {
+                return false;
+            }
+            visitor.endKey(e);
+            return true;
+        } else if (valueMode == VALUE_LAZY) {
+            return loadRawValue(e);
+        } else if (valueMode == VALUE_SKIP) {
+            if (!skipValue(e.type)) {
+                ERROR("Error skipping entry value");
+                return false;
+            }
+            e.success = 1;
+            return true;
+        } else if (valueMode == VALUE_TRANSFER) {
+            pendingType = e.type;
+            e.success = 1;
+            return true;
+        }
+        return loadValue(e);
+    }
+
+    /*
+     * VALUE_TRANSFER模式下, 把next()留在输入中的value原样交给writer写出
+     * 经过的字节直接写到writer的缓冲区, 跳过的部分每次最多读取CaptureRDBInput.TRANSFER_CHUNK字节
+     */
+    void transferValue(RDBWriter writer) {
+        int type = takePendingType();
+        if (capture == null) {
+            capture = new CaptureRDBInput();
+        }
+        RDBInput src = input;
+        capture.reset(src, writer);
+        input = capture;
+        try {
+            if (!skipValue(type)) {
+                ERROR("Error transferring entry value");
+            }
+        } finally {
+            input = src;
+            capture.reset(null);
+        }
+    }
+
+    /* VALUE_TRANSFER模式下, 目标版本不支持原始编码时改为解析留在输入中的value */
+    void loadPendingValue(Entry e) {
+        takePendingType();
+        if (!loadValue(e)) {
+            ERROR("Error reading entry value");
+        }
+    }
+
+    private int takePendingType() {
+        int type = pendingType;
+        if (type < 0) {
+            ERROR("No entry value left in the input");
+        }
+        pendingType = -1;
+        return type;
+    }
+
+    /*
+     * 不解析value, 只把原始编码复制出来, 解析推迟到Entry.getValue()
+     * 设置了StreamVisitor时stream在复制的同时回调, Entry.getValue()不会再回调
+     */
+    private boolean loadRawValue(Entry e) {
+        if (capture == null) {
+            capture = new CaptureRDBInput();
+        }
+        RDBInput src = input;
+        capture.reset(src);
+        input = capture;
+        try {
+            boolean stream = e.type == REDIS_STREAM_LISTPACKS || e.type == REDIS_STREAM_LISTPACKS_2
+                    || e.type == REDIS_STREAM_LISTPACKS_3;
+            if (!(stream && streamVisitor != null ? loadStream(e.type, e, streamVisitor) : skipValue(e.type))) {
+                ERROR("Error reading entry value");
+                return false;
+            }
+        } finally {
+            input = src;
+        }
+        e.raw = capture.toByteArray();
+        e.success = 1;
+        return true;
+    }
+
+    /* 预分配的元素个数, 超过MAX_PRESIZE的按MAX_PRESIZE, 之后再自动扩容; 0表示个数未知 */
+    private static int presize(long size) {
+        return (int) Math.max(0, Math.min(size, MAX_PRESIZE));
+    }
+
+    /* 放入size个元素不需要rehash的HashMap/HashSet容量, 不小于默认的16 */
+    private static int hashCapacity(int size) {
+        return Math.max(16, (int) (size / 0.75f + 1.0f));
+    }
+
+    /* ziplist/listpack头部记录的元素个数, 超出2字节范围时返回0 */
+    private static int packedCount(int count, int unknown) {
+        return count == unknown ? 0 : count;
+    }
+
+    /* 可重复使用的entry复用上一次的集合对象, 否则按size预分配新建 */
+    private static ArrayList<Object> newList(Entry e, long size) {
+        int n = presize(size);
+        if (!e.reusable) {
+            return n == 0 ? new ArrayList<Object>() : new ArrayList<Object>(n);
+        }
+        if (e.listPool == null) {
+            e.listPool = new ArrayList<Object>();
+        }
+        e.listPool.clear();
+        e.listPool.ensureCapacity(n);
+        return e.listPool;
+    }
+
+    private static HashSet<Object> newSet(Entry e, long size) {
+        int n = presize(size);
+        if (!e.reusable) {
+            return n == 0 ? new HashSet<Object>() : new HashSet<Object>(hashCapacity(n));
+        }
+        /* clear()不会缩小容量, 只有需要更大的容量时才重新创建 */
+        if (e.setPool == null || n > e.setPoolSize) {
+            e.setPool = new HashSet<Object>(hashCapacity(n));
+            e.setPoolSize = n;
+        }
+        e.setPool.clear();
+        return e.setPool;
+    }
+
+    private static HashMap<Object, Object> newMap(Entry e, long size) {
+        int n = presize(size);
+        if (!e.reusable) {
+            return n == 0 ? new HashMap<Object, Object>() : new HashMap<Object, Object>(hashCapacity(n));
+        }
+        if (e.mapPool == null || n > e.mapPoolSize) {
+            e.mapPool = new HashMap<Object, Object>(hashCapacity(n));
+            e.mapPoolSize = n;
+        }
+        e.mapPool.clear();
+        return e.mapPool;
+    }
+
+    /* 集合中的一个元素, binary模式下为ByteString, 否则为String */
+    private Object loadElement() {
+        if (binary) {
+            byte[] b = loadStringObjectBytes();
+            return b == null ? null : new ByteString(b);
+        }
+        return loadStringObject();
+    }
+
+    /*
+     * ziplist/listpack游标当前指向的元素, binary模式下为ByteString, 否则为String
+     * 字符串编码的元素在binary模式下直接引用ziplist的byte数组, 不复制
+     */
+    private Object zipElement(PackedList zipList) {
+        if (!binary) {
+            return zipString(zipList);
+        }
+        if (zipList.isInteger()) {
+            return new ByteString(toDecimalBytes(zipList.getLong()));
+        }
+        return new ByteString(zipList.getArray(), zipList.getOffset(), zipList.getLength());
+    }
+
+    private static String zipString(PackedList zipList) {
+        if (zipList.isInteger()) {
+            return String.valueOf(zipList.getLong());
+        }
+        return ZipList.byteToString(zipList.getArray(), zipList.getOffset(), zipList.getLength());
+    }
+
+    /* ziplist游标当前指向的score, 字符串编码的score直接在ziplist的byte数组上解析 */
+    private static double zipScore(PackedList zipList) {
+        if (zipList.isInteger()) {
+            return zipList.getLong();
+        }
+        return parseDouble(zipList.getArray(), zipList.getOffset(), zipList.getLength());
+    }
+
+    /* 遍历到0xff结束符为止, 元素个数超过65535时头部的计数不准确 */
+    private void addElements(Collection<Object> values, PackedList zipList) {
+        while (zipList.next()) {
+            values.add(zipElement(zipList));
+        }
+    }
+
+    /* field和value依次存放 */
+    private void putFields(Map<Object, Object> values, PackedList zipList) {
+        while (zipList.next()) {
+            Object field = zipElement(zipList);
+            if (!zipList.next()) {
+                ERROR("Packed hash field without value");
+            }
+            values.put(field, zipElement(zipList));
+        }
+    }
+
+    /* member和score依次存放, 已经按score排好序 */
+    private void addMembers(ZSet zset, PackedList zipList) {
+        while (zipList.next()) {
+            Object member = zipElement(zipList);
+            if (!zipList.next()) {
+                ERROR("Packed zset member without score");
+            }
+            zset.add(member, zipScore(zipList));
+        }
+    }
+
+    /* 把type类型的ziplist/listpack中的元素逐个回调visitor */
+    private void visitElements(int type, PackedList zipList) {
+        while (zipList.next()) {
+            String val = zipString(zipList);
+            switch (type) {
+                case REDIS_HASH_ZIPLIST:
+                case REDIS_HASH_LISTPACK:
+                    if (!zipList.next()) {
+                        ERROR("Packed hash field without value");
+                    }
+                    visitor.onHashField(val, zipString(zipList));
+                    break;
+                case REDIS_ZSET_ZIPLIST:
+                case REDIS_ZSET_LISTPACK:
+                    if (!zipList.next()) {
+                        ERROR("Packed zset member without score");
+                    }
+                    visitor.onZsetMember(val, zipScore(zipList));
+                    break;
+                case REDIS_SET_LISTPACK:
+                    visitor.onSetMember(val);
+                    break;
+                default:
+                    visitor.onListItem(val);
+            }
+        }
+    }
+
+    /* REDIS_LIST_QUICKLIST_2的一个节点, PLAIN节点为单个元素, PACKED节点为listpack */
+    private ListPack loadQuicklistNode() {
+        long container = loadLength();
+        if (container != QUICKLIST_NODE_CONTAINER_PLAIN
+                && container != QUICKLIST_NODE_CONTAINER_PACKED) {
+            ERROR("Unknown quicklist node container (%d)", container);
+        }
+        byte[] node = loadStringObjectBytes();
+        if (node == null) {
+            ERROR("Error reading quicklist node");
+        }
+        if (container == QUICKLIST_NODE_CONTAINER_PLAIN) {
+            plainNode = node;
+            return null;
+        }
+        return new ListPack(node);
+    }
+
+    /* loadQuicklistNode()读到的PLAIN节点 */
+    private byte[] plainNode;
+
+    /* value以元素(或节点)个数开头的类型 */
+    private static boolean hasLength(int type) {
+        return type == REDIS_LIST || type == REDIS_SET || type == REDIS_ZSET
+                || type == REDIS_HASH || type == REDIS_ZSET_2
+                || type == REDIS_LIST_QUICKLIST || type == REDIS_LIST_QUICKLIST_2;
+    }
+
+    /* REDIS_ZSET_2的score为8字节little endian的double, REDIS_ZSET的为字符串 */
+    private double loadScore(int type) {
+        if (type == REDIS_ZSET_2) {
+            return Double.longBitsToDouble(input.readInt64LE());
+        }
+        return loadDoubleValue();
+    }
+
+    /* 解析value */
+    boolean loadValue(Entry e) {
+        int i;
+        long length = 0;
+        if (hasLength(e.type)) {
+            if ((length = loadLength()) == REDIS_RDB_LENERR) {
+                ERROR("Error reading %d length", e.type);
+                return false;
+            }
+        }
+
+        switch (e.type) {
+            case REDIS_STRING:
+                e.value = binary ? loadStringObjectBytes() : loadStringObject();
+                if (e.value == null) {
+                    ERROR("Error reading entry value");
+                    return false;
+                }
+                break;
             case REDIS_HASH_ZIPMAP:
                 byte[] hashZipValue = loadStringObjectBytes();
-                e.value = ZipMap.zipmapExpand(hashZipValue);
+                e.value = binary ? ZipMap.zipmapExpandBytes(hashZipValue)
+                        : ZipMap.zipmapExpand(hashZipValue);
                 if (e.value == null) {
                     ERROR("Error reading entry value");
                     return false;
                 }
                 break;
             case REDIS_LIST_ZIPLIST:
-            	List<String> lists = new ArrayList<String>();
-            	ZipList zipList = new ZipList(loadStringObjectBytes());
-            	int entryCountList = zipList.decodeEntryCount();
-
-            	for (int j = 0; j < entryCountList; j++) {
-            		if(zipList.getEndByte() == ZipList.ZIPLIST_END){	// 0xff为ziplist的结束符
-            			break;
-            		}
-            		// value
-            		lists.add(zipList.decodeEntryValue());
-				}
+            	ZipList listZipList = new ZipList(loadStringObjectBytes());
+            	List<Object> lists = newList(e,
+            	        packedCount(listZipList.decodeEntryCount(), ZipList.ZIPLIST_COUNT_UNKNOWN));
+            	addElements(lists, listZipList);
             	e.value = lists;
             	break;
+            case REDIS_LIST_QUICKLIST:
+                /* 只知道节点个数, 元素个数需要解析节点后才知道 */
+                List<Object> quicklist = newList(e, 0);
+                for (i = 0; i < length; i++) {
+                    addElements(quicklist, new ZipList(loadStringObjectBytes()));
+                }
+                e.value = quicklist;
+                break;
+            case REDIS_LIST_QUICKLIST_2:
+                List<Object> quicklist2 = newList(e, 0);
+                for (i = 0; i < length; i++) {
+                    ListPack node = loadQuicklistNode();
+                    if (node != null) {
+                        addElements(quicklist2, node);
+                    } else {
+                        quicklist2.add(binary ? new ByteString(plainNode) : new String(plainNode, CHARSET));
+                    }
+                }
+                e.value = quicklist2;
+                break;
+            case REDIS_SET_LISTPACK:
+                ListPack setLp = new ListPack(loadStringObjectBytes());
+                HashSet<Object> setListpack = newSet(e,
+                        packedCount(setLp.decodeEntryCount(), ListPack.LISTPACK_COUNT_UNKNOWN));
+                addElements(setListpack, setLp);
+                e.value = setListpack;
+                break;
             case REDIS_SET_INTSET:
+                e.value = IntSet.decode(loadStringObjectBytes());
+                break;
+            case REDIS_MODULE_2:
+                /* 没有模块无法解析, 跳过数据, value为模块的类型名 */
+                long moduleId = loadLength();
+                if (moduleId == REDIS_RDB_LENERR || !skipModuleValue()) {
+                    ERROR("Error skipping module value");
+                    return false;
+                }
+                e.value = moduleTypeName(moduleId);
+                break;
+            case REDIS_STREAM_LISTPACKS:
+            case REDIS_STREAM_LISTPACKS_2:
+            case REDIS_STREAM_LISTPACKS_3:
+                /* stream可能非常大, 不构建成value, 内容只通过StreamVisitor回调 */
+                if (!loadStream(e.type, e, streamVisitor)) {
+                    ERROR("Error reading stream");
+                    return false;
+                }
+                break;
             case REDIS_ZSET_ZIPLIST:
-            	//TODO
-            	throw new UnsupportedOperationException("Sorry, 暂时还不支持!");
+                ZipList zsetZipList = new ZipList(loadStringObjectBytes());
+                ZSet zset = new ZSet(packedCount(zsetZipList.decodeEntryCount(),
+                        ZipList.ZIPLIST_COUNT_UNKNOWN) / 2);
+                /* ziplist中的顺序就是redis中的顺序, 不需要排序 */
+                addMembers(zset, zsetZipList);
+                e.value = zset;
+                break;
+            case REDIS_ZSET_LISTPACK:
+                ListPack zsetListpack = new ListPack(loadStringObjectBytes());
+                ZSet zsetlp = new ZSet(packedCount(zsetListpack.decodeEntryCount(),
+                        ListPack.LISTPACK_COUNT_UNKNOWN) / 2);
+                addMembers(zsetlp, zsetListpack);
+                e.value = zsetlp;
+                break;
             case REDIS_HASH_ZIPLIST:
-            	HashMap<String, String> hashmapValues = new HashMap<String, String>();
             	/* 将整个Hashmap in Ziplist的内容以byte数组读出来，再进行解析 */
-            	ZipList zipLit = new ZipList(loadStringObjectBytes());
-            	int entryCount = zipLit.decodeEntryCount();
-
-            	for (int j = 0; j < entryCount/2; j++) {
-            		if(zipLit.getEndByte() == ZipList.ZIPLIST_END){	// 0xff为ziplist的结束符
-            			break;
-            		}
-            		// key
-            		String hashKey = zipLit.decodeEntryValue();
-            		// value
-            		String hashValue = zipLit.decodeEntryValue();
-            		hashmapValues.put(hashKey, hashValue);
-				}
+            	ZipList hashZipList = new ZipList(loadStringObjectBytes());
+            	HashMap<Object, Object> hashmapValues = newMap(e,
+            	        packedCount(hashZipList.decodeEntryCount(), ZipList.ZIPLIST_COUNT_UNKNOWN) / 2);
+            	putFields(hashmapValues, hashZipList);
             	e.value = hashmapValues;
-            	zipLit = null;
             	break;
+            case REDIS_HASH_LISTPACK:
+                ListPack hashLp = new ListPack(loadStringObjectBytes());
+                HashMap<Object, Object> hashListpack = newMap(e,
+                        packedCount(hashLp.decodeEntryCount(), ListPack.LISTPACK_COUNT_UNKNOWN) / 2);
+                putFields(hashListpack, hashLp);
+                e.value = hashListpack;
+                break;
             case REDIS_LIST:
-                List<String> listValues = new ArrayList<String>();
+                List<Object> listValues = newList(e, length);
                 for (i = 0; i < length; i++) {
-                    String val = loadStringObject();
+                    Object val = loadElement();
                     if (val == null) {
                         ERROR("Error reading element at index %d (length: %d)",
                                 i, length);
@@ -528,9 +1561,9 @@ public class ParseRDB {
                 e.value = listValues;
                 break;
             case REDIS_SET:
-                HashSet<String> setValues = new HashSet<String>();
+                HashSet<Object> setValues = newSet(e, length);
                 for (i = 0; i < length; i++) {
-                    String val = loadStringObject();
+                    Object val = loadElement();
                     if (val == null) {
                         ERROR("Error reading element at index %d (length: %d)",
                                 i, length);
@@ -541,34 +1574,31 @@ public class ParseRDB {
                 e.value = setValues;
                 break;
             case REDIS_ZSET:
-                TreeMap<Double, String> zsetValues = new TreeMap<Double, String>();
+            case REDIS_ZSET_2:
+                ZSet zsetValues = new ZSet(presize(length));
                 for (i = 0; i < length; i++) {
-                    String val = loadStringObject();
+                    Object val = loadElement();
                     if (val == null) {
                         ERROR("Error reading element key at index %d (length: %d)",
                                 i, length);
                         return false;
                     }
-                    Double score = loadDoubleValue();
-                    if (score == null) {
-                        ERROR("Error reading element value at index %d (length: %d)",
-                                i, length);
-                        return false;
-                    }
-                    zsetValues.put(score, val);
+                    double score = loadScore(e.type);
+                    zsetValues.add(val, score);
                 }
+                zsetValues.sort();
                 e.value = zsetValues;
                 break;
             case REDIS_HASH:
-                HashMap<String, String> mapValues = new HashMap<String, String>();
+                HashMap<Object, Object> mapValues = newMap(e, length);
                 for (i = 0; i < length; i++) {
-                    String k = loadStringObject();
+                    Object k = loadElement();
                     if (k == null) {
                         ERROR("Error reading element key at index %d (length: %d)",
                                 i, length);
                         return false;
                     }
-                    String val = loadStringObject();
+                    Object val = loadElement();
                     if (val == null) {
                         ERROR("Error reading element value at index %d (length: %d)",
                                 i, length);
@@ -587,19 +1617,138 @@ public class ParseRDB {
         return true;
     }
 
-    Entry loadEntry() {
-        Entry e = new Entry();
-        e.key = null;
-        e.value = null;
-        e.success = 0;
-        e.type = -1;
+    /* 解析value, 每个元素解析出来后直接回调visitor */
+    private boolean visitValue(Entry e) {
+        long i, length = 0;
+        if (hasLength(e.type)) {
+            if ((length = loadLength()) == REDIS_RDB_LENERR) {
+                ERROR("Error reading %d length", e.type);
+                return false;
+            }
+        }
+
+        switch (e.type) {
+            case REDIS_STRING:
+                String value = loadStringObject();
+                if (value == null) {
+                    ERROR("Error reading entry value");
+                    return false;
+                }
+                visitor.onString(value);
+                break;
+            case REDIS_HASH_ZIPMAP:
+                /* 直接遍历zipmap的byte数组, 不创建中间的HashMap */
+                ZipMap zipMap = new ZipMap(loadStringObjectBytes());
+                byte[] zm = zipMap.getArray();
+                while (zipMap.next()) {
+                    visitor.onHashField(new String(zm, zipMap.getKeyOffset(), zipMap.getKeyLength(), CHARSET),
+                            new String(zm, zipMap.getValueOffset(), zipMap.getValueLength(), CHARSET));
+                }
+                break;
+            case REDIS_LIST_ZIPLIST:
+            case REDIS_HASH_ZIPLIST:
+            case REDIS_ZSET_ZIPLIST:
+                visitElements(e.type, new ZipList(loadStringObjectBytes()));
+                break;
+            case REDIS_HASH_LISTPACK:
+            case REDIS_ZSET_LISTPACK:
+            case REDIS_SET_LISTPACK:
+                visitElements(e.type, new ListPack(loadStringObjectBytes()));
+                break;
+            case REDIS_LIST_QUICKLIST:
+                for (i = 0; i < length; i++) {
+                    visitElements(e.type, new ZipList(loadStringObjectBytes()));
+                }
+                break;
+            case REDIS_LIST_QUICKLIST_2:
+                for (i = 0; i < length; i++) {
+                    ListPack node = loadQuicklistNode();
+                    if (node != null) {
+                        visitElements(e.type, node);
+                    } else {
+                        visitor.onListItem(new String(plainNode, CHARSET));
+                    }
+                }
+                break;
+            case REDIS_MODULE_2:
+                /* 模块的数据不回调, 只有startKey和endKey */
+                if (!skipValue(e.type)) {
+                    ERROR("Error skipping module value");
+                    return false;
+                }
+                break;
+            case REDIS_STREAM_LISTPACKS:
+            case REDIS_STREAM_LISTPACKS_2:
+            case REDIS_STREAM_LISTPACKS_3:
+                if (!loadStream(e.type, e, streamVisitor)) {
+                    ERROR("Error reading stream");
+                    return false;
+                }
+                break;
+            case REDIS_SET_INTSET:
+                IntSet.Iterator it = IntSet.decode(loadStringObjectBytes()).iterator();
+                while (it.hasNext()) {
+                    visitor.onSetMember(String.valueOf(it.next()));
+                }
+                break;
+            case REDIS_LIST:
+            case REDIS_SET:
+                for (i = 0; i < length; i++) {
+                    String val = loadStringObject();
+                    if (val == null) {
+                        ERROR("Error reading element at index %d (length: %d)",
+                                i, length);
+                        return false;
+                    }
+                    if (e.type == REDIS_LIST) {
+                        visitor.onListItem(val);
+                    } else {
+                        visitor.onSetMember(val);
+                    }
+                }
+                break;
+            case REDIS_ZSET:
+            case REDIS_ZSET_2:
+                for (i = 0; i < length; i++) {
+                    String val = loadStringObject();
+                    if (val == null) {
+                        ERROR("Error reading element key at index %d (length: %d)",
+                                i, length);
+                        return false;
+                    }
+                    visitor.onZsetMember(val, loadScore(e.type));
+                }
+                break;
+            case REDIS_HASH:
+                for (i = 0; i < length; i++) {
+                    String k = loadStringObject();
+                    String val = k == null ? null : loadStringObject();
+                    if (val == null) {
+                        ERROR("Error reading element at index %d (length: %d)",
+                                i, length);
+                        return false;
+                    }
+                    visitor.onHashField(k, val);
+                }
+                break;
+            default:
+                ERROR("Type not implemented");
+                return false;
+        }
+        e.success = 1;
+        return true;
+    }
+
+    Entry loadEntry(Entry e) {
+        e.reset();
+        expiredSkipped = false;
 
         long length;
         if (!loadType(e)) {
             return e;
         }
         if (e.type == REDIS_SELECTDB) {
-            if ((length = loadLength(null)) == REDIS_RDB_LENERR) {
+            if ((length = loadLength()) == REDIS_RDB_LENERR) {
                 ERROR("Error reading database number");
                 return e;
             }
@@ -607,27 +1756,47 @@ public class ParseRDB {
                 ERROR("Database number out of range (%d)", length);
                 return e;
             }
+            db = (int) length;
+            dbSize = -1;
+            expiresSize = -1;
+        } else if (processMetadata(e.type)) {
+            /* 元数据不是key, 由nextEntry()继续读下一个 */
         } else if (e.type == REDIS_EOF) {
+            if (checking) {
+                checkChecksum();
+            }
             e.success = 1;
             return e;
         } else {
-            /* optionally consume expire */
-            if (e.type == REDIS_EXPIRETIME_FD || e.type == REDIS_EXPIRETIME_FC) {
-            	byte[] buf = processTime(e.type);
-                if ( buf == null){
-                    return e;
-                }else {
-                	long expire = ((long)(buf[7] & 0x00ff) << 56)
-    						+ ((long)(buf[6] & 0x00ff) << 48) + ((long)(buf[5] & 0x00ff) << 40)
-    						+ ((long)(buf[4] & 0x00ff) << 32) + ((long)(buf[3] & 0x00ff) << 24)
-    						+ ((long)(buf[2] & 0x00ff) << 16) + ((long)(buf[1] & 0x00ff) << 8)
-    						+ ((long)(buf[0] & 0x00ff));
-                	e.expire = (int)(expire/1000);
+            /* optionally consume expire, 然后是LRU/LFU信息 */
+            while (e.type == REDIS_EXPIRETIME_FD || e.type == REDIS_EXPIRETIME_FC
+                    || e.type == REDIS_IDLE || e.type == REDIS_FREQ) {
+                if (e.type == REDIS_IDLE) {
+                    if ((e.idle = loadLength()) == REDIS_RDB_LENERR) {
+                        ERROR("Error reading idle time");
+                    }
+                } else if (e.type == REDIS_FREQ) {
+                    if ((e.freq = input.read()) == -1) {
+                        ERROR("Error reading lfu frequency");
+                    }
+                } else {
+                    e.expire = processTime(e.type);
                 }
                 if (!loadType(e))
                     return e;
             }
 
+            e.db = db;
+            /* 和redis加载时一样丢弃已过期的key, value不解析直接跳过 */
+            if (e.expire != 0 && e.expire < expireBefore) {
+                if (!skipStringObject() || !skipValue(e.type)) {
+                    ERROR("Error skipping expired key of type %d", e.type);
+                }
+                expiredSkipped = true;
+                expiredCount++;
+                e.success = 1;
+                return e;
+            }
             if (!loadPair(e)) {
                 ERROR("Error for type %d", e.type);
                 return e;
@@ -650,40 +1819,340 @@ public class ParseRDB {
         return e;
     }
 
+    /* 读到REDIS_EOF后, 比较边读边算出的CRC64和文件末尾保存的校验和 */
+    private void checkChecksum() {
+        long actual = input.getChecksum();
+        input.setChecksum(null);
+        checking = false;
+        long expected = input.readInt64LE();
+        /* redis关闭rdbchecksum时保存的校验和为0 */
+        if (expected != 0 && expected != actual) {
+            ERROR("Wrong RDB checksum, expected %016x, got %016x", expected, actual);
+        }
+    }
+
+    /**
+     * 返回下一个entry
+     * @return 文件结束时返回null, 开启了校验且文件末尾的CRC64不一致时抛出异常
+     */
     public Entry next() {
-        Entry entry = loadEntry();
-        if (entry.success != 1)
-            ERROR("Can't get entry");
-        while(entry.type == REDIS_SELECTDB ||entry.type == REDIS_EXPIRETIME_FD || entry.type == REDIS_EXPIRETIME_FC){
-            entry = loadEntry();
+        return nextEntry(new Entry());
+    }
+
+    /**
+     * 把下一个entry解析到reuse中, 不创建新的Entry对象
+     * value中的集合对象也会在下一次调用时被清空复用, 需要保留的数据要在下一次调用前复制出来
+     * @param reuse 调用方持有的Entry, 可以反复传入
+     * @return 文件结束时返回null, 否则返回reuse
+     */
+    public Entry next(Entry reuse) {
+        reuse.reusable = true;
+        return nextEntry(reuse);
+    }
+
+    private Entry nextEntry(Entry entry) {
+        /* 上一个entry没有写出的value */
+        if (pendingType >= 0 && !skipValue(takePendingType())) {
+            ERROR("Error skipping entry value");
+        }
+        do {
+            if (input.position() >= limit)
+                return null;
+            loadEntry(entry);
             if (entry.success != 1)
                 ERROR("Can't get entry");
-        }
+        } while (entry.type == REDIS_SELECTDB || entry.type == REDIS_RESIZEDB
+                || entry.type == REDIS_AUX || entry.type == REDIS_MODULE_AUX
+                || entry.type == REDIS_FUNCTION || expiredSkipped);
         if (entry.type == REDIS_EOF)
             return null;
         return entry;
     }
 
+    /**
+     * 解析剩余的所有entry, value不放到Entry中, 而是逐个元素回调visitor
+     * @param visitor
+     */
+    public void accept(RDBVisitor visitor) {
+        this.visitor = visitor;
+        try {
+            while (next() != null) {
+            }
+        } finally {
+            this.visitor = null;
+        }
+    }
+
+    /**
+     * binary模式下key和value都保存为byte数组, 不做任何字符集转换, 适合原样导出的场景
+     * 需要String时通过Entry.getKey()或ByteString.toString()转换
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * 设置value的解析方式
+     * @param mode VALUE_DECODE, VALUE_LAZY, VALUE_SKIP, VALUE_TRANSFER
+     */
+    public void setValueMode(int mode) {
+        if (mode != VALUE_DECODE && mode != VALUE_LAZY && mode != VALUE_SKIP && mode != VALUE_TRANSFER) {
+            throw new IllegalArgumentException("Unknown value mode: " + mode);
+        }
+        this.valueMode = mode;
+    }
+
+    /**
+     * 是否边解析边计算CRC64, 读到文件结尾时和文件中保存的校验和比较, 默认开启
+     * 版本5之前的文件没有校验和; 关闭后跳过value时可以直接seek, 需要在init之前调用
+     */
+    public void setVerifyChecksum(boolean verify) {
+        this.verifyChecksum = verify;
+    }
+
+    /**
+     * 跳过在referenceTime(毫秒时间戳)之前已经过期的key, key和value都不解析, next()和accept()都不返回这些key
+     * 导出时一般传入System.currentTimeMillis()或生成dump的时间, 0表示不过滤(默认)
+     */
+    public void setExpireFilter(long referenceTime) {
+        this.expireBefore = referenceTime;
+    }
+
+    /* 因为已过期被跳过的key的个数 */
+    public long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * 设置stream类型的回调, next()和accept()遇到stream时逐条回调消息和消费组, Entry.value为null
+     * VALUE_LAZY模式下也在next()中立即回调, 同时保留原始编码; VALUE_SKIP, VALUE_TRANSFER模式和没有设置时不回调
+     */
+    public void setStreamVisitor(StreamVisitor visitor) {
+        this.streamVisitor = visitor;
+    }
+
+    /* 到目前为止读到的REDIS_AUX辅助字段, 一般都在文件开头, 第一次next()之后就可以取到 */
+    public Map<String, String> getAux() {
+        return Collections.unmodifiableMap(aux);
+    }
+
+    public String getAux(String key) {
+        return aux.get(key);
+    }
+
+    /* 到目前为止读到的REDIS_FUNCTION函数库代码 */
+    public List<byte[]> getFunctions() {
+        return Collections.unmodifiableList(functions);
+    }
+
+    /* RDB文件的版本号, init之后就可以取到 */
+    public int getVersion() {
+        return version;
+    }
+
+    /* 生成这个文件的redis版本, 如"7.2.4", 没有时返回null */
+    public String getRedisVersion() {
+        return aux.get("redis-ver");
+    }
+
+    /* 生成时redis使用的内存字节数, 没有时返回-1 */
+    public long getUsedMem() {
+        return auxLong("used-mem");
+    }
+
+    /* 生成时的复制偏移量, 没有时返回-1 */
+    public long getReplOffset() {
+        return auxLong("repl-offset");
+    }
+
+    private long auxLong(String key) {
+        String value = aux.get(key);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /* 当前数据库的key个数(来自REDIS_RESIZEDB, RDB版本7开始), 没有时返回-1 */
+    public long getDbSize() {
+        return dbSize;
+    }
+
+    /* 当前数据库中带过期时间的key个数, 没有时返回-1 */
+    public long getExpiresSize() {
+        return expiresSize;
+    }
+
+    /* 到目前为止所有数据库的REDIS_RESIZEDB给出的key个数之和, 可以用来预分配按key建立的索引 */
+    public long getKeyCountHint() {
+        return keyCountHint;
+    }
+
+    /* 通过FileChannel加8K缓冲区读取文件 */
     public void init(File file) {
+        FileInputStream in = null;
         try {
-            filech = new FileInputStream(file).getChannel();
-            bytebuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
-            bytebuffer.position(0);
-            bytebuffer.limit(0);
-            processHeader();
+            in = new FileInputStream(file);
         } catch (Exception e) {
+            throw new RuntimeException("Found exceptions when opening file", e);
+        }
+        init(new ChannelRDBInput(in.getChannel()));
+    }
+
+    /* 通过内存映射读取文件, 默认每次映射256M */
+    public void initMapped(File file) {
+        initMapped(file, MappedRDBInput.DEFAULT_WINDOW_SIZE);
+    }
+
+    public void initMapped(File file, int windowSize) {
+        try {
+            init(new MappedRDBInput(file, windowSize));
+        } catch (IOException e) {
+            throw new RuntimeException("Found exceptions when opening file", e);
+        }
+    }
+
+    /* 后台线程预读文件, 解析和磁盘IO同时进行 */
+    public void initPrefetch(File file) {
+        initPrefetch(file, PrefetchRDBInput.DEFAULT_BUFFER_SIZE, PrefetchRDBInput.DEFAULT_DEPTH);
+    }
+
+    /**
+     * @param file
+     * @param bufferSize 每块预读缓冲区的大小
+     * @param depth 预读缓冲区的块数
+     */
+    public void initPrefetch(File file, int bufferSize, int depth) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+        } catch (Exception e) {
+            throw new RuntimeException("Found exceptions when opening file", e);
+        }
+        init(new PrefetchRDBInput(in.getChannel(), bufferSize, depth));
+    }
+
+    /* 从管道, 标准输入, socket等流中读取, 不需要落地成文件 */
+    public void init(InputStream in) {
+        init(Channels.newChannel(in));
+    }
+
+    public void init(ReadableByteChannel channel) {
+        init(new ChannelRDBInput(channel));
+    }
+
+    /* 读取gzip压缩的dump(如dump.rdb.gz), 解压在预读线程中进行, 不需要先解压到磁盘 */
+    public void initGzip(InputStream in) {
+        initGzip(in, PrefetchRDBInput.DEFAULT_BUFFER_SIZE, PrefetchRDBInput.DEFAULT_DEPTH);
+    }
+
+    /**
+     * @param in gzip压缩的数据流
+     * @param bufferSize 每块解压缓冲区的大小
+     * @param depth 解压缓冲区的块数, 解压线程最多领先解析线程这么多块
+     */
+    public void initGzip(InputStream in, int bufferSize, int depth) {
+        GZIPInputStream gzip = null;
+        try {
+            gzip = new GZIPInputStream(in, 64 * 1024);
+        } catch (IOException e) {
             try {
-                filech.close();
-            } catch (Exception e1) {}
+                in.close();
+            } catch (IOException e1) {}
+            throw new RuntimeException("Found exceptions when opening gzip stream", e);
+        }
+        init(new PrefetchRDBInput(Channels.newChannel(gzip), bufferSize, depth));
+    }
+
+    public void init(RDBInput in) {
+        try {
+            input = in;
+            checking = verifyChecksum && in.setChecksum(new CRC64());
+            processHeader();
+            if (checking && version < 5) {
+                in.setChecksum(null);
+                checking = false;
+            }
+        } catch (Exception e) {
+            in.close();
             throw new RuntimeException("Found exceptions when opening file", e);
         }
     }
 
-    public void close(){
+    /**
+     * 从文件中间的某个entry开始解析, 用于并行解析
+     * @param in 已经定位到entry起始位置的数据源
+     * @param db 起始位置所在的数据库编号
+     * @param limit 读到这个位置为止
+     */
+    void initRange(RDBInput in, int db, long limit) {
+        this.input = in;
+        this.db = db;
+        this.limit = limit;
+    }
+
+    /**
+     * 只校验文件的CRC64, 不解析内容, 速度接近顺序读文件的速度
+     * @return 校验和一致, 或者文件中保存的校验和为0(redis关闭了rdbchecksum)时返回true
+     */
+    public static boolean verifyChecksum(File file) {
+        RDBInput in;
+        try {
+            in = new MappedRDBInput(file);
+        } catch (IOException e) {
+            throw new RuntimeException("Found exceptions when opening file", e);
+        }
         try {
-            filech.close();
-            filech = null;
-        } catch (Exception e) {}
+            long size = file.length();
+            CRC64 crc = new CRC64();
+            in.setChecksum(crc);
+            ParseRDB rdb = new ParseRDB();
+            rdb.input = in;
+            rdb.processHeader();
+            if (rdb.version < 5) {
+                ERROR("RDB version %d has no checksum", rdb.version);
+            }
+            /* 最后9个字节是REDIS_EOF和8字节校验和 */
+            if (size < 18 || !in.skip(size - 9 - in.position()) || in.read() != REDIS_EOF) {
+                ERROR("Cannot find RDB EOF marker, file may be truncated");
+            }
+            long actual = in.getChecksum();
+            in.setChecksum(null);
+            long expected = in.readInt64LE();
+            return expected == 0 || expected == actual;
+        } finally {
+            in.close();
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2 || !args[0].equals("-check")) {
+            System.err.println("Usage: ParseRDB -check dump.rdb ...");
+            System.exit(1);
+        }
+        boolean ok = true;
+        for (int i = 1; i < args.length; i++) {
+            try {
+                boolean valid = verifyChecksum(new File(args[i]));
+                System.out.println(args[i] + (valid ? " : OK" : " : WRONG CHECKSUM"));
+                ok &= valid;
+            } catch (RuntimeException e) {
+                System.out.println(args[i] + " : " + e.getMessage());
+                ok = false;
+            }
+        }
+        System.exit(ok ? 0 : 2);
+    }
+
+    public void close(){
+        if (input != null) {
+            input.close();
+            input = null;
+        }
     }
 
 }
@@ -0,0 +1,246 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ *
+ * 后台线程预读的RDB数据源
+ * 读线程提前把数据读入depth块大小为bufferSize的缓冲区, 解析线程依次取用,
+ * 用完的缓冲区再还给读线程, 这样解析和磁盘IO可以同时进行
+ *
+ */
+public class PrefetchRDBInput extends RDBInput {
+
+    public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    public static final int DEFAULT_DEPTH = 4;
+
+    /* 读线程读到文件末尾时放入的结束标记 */
+    private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+    private final ReadableByteChannel channel;
+
+    /* 已读入数据, 等待解析的缓冲区 */
+    private final BlockingQueue<ByteBuffer> filled;
+
+    /* 解析完毕, 可以再次读入数据的缓冲区 */
+    private final BlockingQueue<ByteBuffer> empty;
+
+    private final Thread reader;
+
+    private volatile boolean closed = false;
+
+    /* 读线程遇到的异常, 由解析线程在读到EOF标记时抛出 */
+    private volatile IOException readError;
+
+    private ByteBuffer current;
+
+    /* current之前所有缓冲区的字节总数 */
+    private long consumed;
+
+    private boolean eof = false;
+
+    /* 不为null时计算经过的所有字节的校验和 */
+    private CRC64 checksum;
+
+    /* current中这个位置之前的字节已经计入校验和 */
+    private int crcMark;
+
+    public PrefetchRDBInput(ReadableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE, DEFAULT_DEPTH);
+    }
+
+    public PrefetchRDBInput(ReadableByteChannel channel, int bufferSize, int depth) {
+        if (bufferSize <= 0 || depth <= 0) {
+            throw new IllegalArgumentException("Buffer size and depth must bigger than zero");
+        }
+        this.channel = channel;
+        /* 多留一个位置给EOF标记, 读线程放入EOF时不会被阻塞 */
+        this.filled = new ArrayBlockingQueue<ByteBuffer>(depth + 1);
+        this.empty = new ArrayBlockingQueue<ByteBuffer>(depth);
+        for (int i = 0; i < depth; i++) {
+            empty.add(ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN));
+        }
+        this.current = EOF;
+        this.reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "rdb-prefetch");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /* 读线程: 取一块空缓冲区, 读满后交给解析线程 */
+    private void readLoop() {
+        try {
+            while (!closed) {
+                ByteBuffer buf = empty.take();
+                buf.clear();
+                int nRead = 0;
+                while (buf.hasRemaining()) {
+                    if ((nRead = channel.read(buf)) == -1) {
+                        break;
+                    }
+                }
+                buf.flip();
+                if (buf.hasRemaining()) {
+                    filled.put(buf);
+                }
+                if (nRead == -1) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            readError = e;
+        } catch (InterruptedException e) {
+            return;
+        }
+        try {
+            filled.put(EOF);
+        } catch (InterruptedException e) {}
+    }
+
+    /* 当前缓冲区读完后, 换下一块已读入数据的缓冲区 */
+    private boolean fill() {
+        if (eof) {
+            return false;
+        }
+        ByteBuffer next;
+        try {
+            next = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        consumed += current.limit();
+        if (checksum != null) {
+            checksum.update(current, crcMark, current.position());
+            crcMark = 0;
+        }
+        if (current != EOF) {
+            empty.offer(current);
+        }
+        current = next;
+        if (next == EOF) {
+            eof = true;
+            if (readError != null) {
+                throw new RuntimeException("Found exceptions when reading data", readError);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean readBytes(byte[] buf, int start, int num) {
+        if (num < 0) {
+            throw new IllegalArgumentException("Num must bigger than zero");
+        }
+        while (num > 0) {
+            if (!current.hasRemaining() && !fill()) {
+                return false;
+            }
+            int nget = Math.min(current.remaining(), num);
+            current.get(buf, start, nget);
+            start += nget;
+            num -= nget;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() {
+        if (!current.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return current.get() & 0x00ff;
+    }
+
+    @Override
+    public int readInt16LE() {
+        if (current.remaining() < 2) {
+            return super.readInt16LE();
+        }
+        return current.getShort();
+    }
+
+    @Override
+    public int readInt32LE() {
+        if (current.remaining() < 4) {
+            return super.readInt32LE();
+        }
+        return current.getInt();
+    }
+
+    @Override
+    public long readInt64LE() {
+        if (current.remaining() < 8) {
+            return super.readInt64LE();
+        }
+        return current.getLong();
+    }
+
+    @Override
+    public long readUInt32BE() {
+        if (current.remaining() < 4) {
+            return super.readUInt32BE();
+        }
+        return Integer.reverseBytes(current.getInt()) & 0xffffffffL;
+    }
+
+    @Override
+    public boolean skip(long n) {
+        /* 读线程已经在前面读好了数据, 直接在缓冲区中跳过 */
+        while (n > 0) {
+            if (!current.hasRemaining() && !fill()) {
+                return false;
+            }
+            int step = (int) Math.min(current.remaining(), n);
+            current.position(current.position() + step);
+            n -= step;
+        }
+        return true;
+    }
+
+    @Override
+    public long position() {
+        return consumed + current.position();
+    }
+
+    @Override
+    public boolean setChecksum(CRC64 crc) {
+        checksum = crc;
+        crcMark = current.position();
+        return true;
+    }
+
+    @Override
+    public long getChecksum() {
+        if (checksum == null) {
+            return 0;
+        }
+        checksum.update(current, crcMark, current.position());
+        crcMark = current.position();
+        return checksum.getValue();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        reader.interrupt();
+        try {
+            channel.close();
+        } catch (IOException e) {}
+    }
+}
@@ -0,0 +1,335 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ *
+ * RDB文件的key索引, 保存在单独的索引文件中
+ * 扫描一遍RDB文件, 记录每个key的hash值和entry在文件中的偏移量(以及类型和数据库编号),
+ * 查询时二分查找hash值, 直接定位到entry只解析这一个key, 不需要再从头扫描整个文件
+ *
+ * 索引文件格式(big endian):
+ * 8字节魔数"RDBIDX01", 8字节RDB文件长度, 8字节RDB文件修改时间, 8字节记录数,
+ * 然后是按hash排序的记录, 每条16字节: 8字节key的hash, 8字节(type << 56 | db << 48 | offset)
+ *
+ */
+public class RDBIndex {
+
+    private static final byte[] MAGIC = { 'R', 'D', 'B', 'I', 'D', 'X', '0', '1' };
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final int RECORD_SIZE = 16;
+
+    private static final long OFFSET_MASK = (1L << 48) - 1;
+
+    /* 索引文件按1G分段映射, 是RECORD_SIZE的整数倍, 记录不会跨段 */
+    private static final int CHUNK_BITS = 30;
+
+    private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    private final FileChannel rdbch;
+
+    private final FileChannel idxch;
+
+    private final MappedByteBuffer[] chunks;
+
+    private final long count;
+
+    private RDBIndex(FileChannel rdbch, FileChannel idxch, MappedByteBuffer[] chunks, long count) {
+        this.rdbch = rdbch;
+        this.idxch = idxch;
+        this.chunks = chunks;
+        this.count = count;
+    }
+
+    /* 默认的索引文件, 和RDB文件放在同一目录下 */
+    public static File indexFile(File rdb) {
+        return new File(rdb.getPath() + ".idx");
+    }
+
+    /* 64位FNV-1a hash */
+    static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length; i++) {
+            h ^= key[i] & 0x00ff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    public static void build(File rdb) {
+        build(rdb, indexFile(rdb));
+    }
+
+    /**
+     * 扫描RDB文件生成索引, value只读取长度直接跳过
+     * @param rdb
+     * @param index 索引文件, 已存在时覆盖
+     */
+    public static void build(File rdb, File index) {
+        long[] hashes = new long[1024];
+        long[] entries = new long[1024];
+        int n = 0;
+
+        ParseRDB parser = new ParseRDB();
+        /* 只扫描entry边界, value直接跳过, 不校验 */
+        parser.setVerifyChecksum(false);
+        parser.initMapped(rdb);
+        try {
+            int type;
+            while ((type = parser.scanEntry(true)) != ParseRDB.REDIS_EOF) {
+                if (n == hashes.length) {
+                    if (n == Integer.MAX_VALUE - 8) {
+                        throw new IllegalStateException("Too many keys to index in " + rdb);
+                    }
+                    /* 有REDIS_RESIZEDB时直接扩到文件中key的个数 */
+                    int size = (int) Math.min(Math.max(n * 2L, parser.getKeyCountHint()),
+                            Integer.MAX_VALUE - 8);
+                    hashes = Arrays.copyOf(hashes, size);
+                    entries = Arrays.copyOf(entries, size);
+                }
+                hashes[n] = hash(parser.entryKey);
+                entries[n] = ((long) type << 56) | ((long) parser.db << 48)
+                        | (parser.entryStart & OFFSET_MASK);
+                n++;
+            }
+        } finally {
+            parser.close();
+        }
+        sort(hashes, entries, 0, n - 1);
+
+        FileChannel out = null;
+        try {
+            out = new FileOutputStream(index).getChannel();
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            buf.put(MAGIC);
+            buf.putLong(rdb.length());
+            buf.putLong(rdb.lastModified());
+            buf.putLong(n);
+            for (int i = 0; i < n; i++) {
+                if (buf.remaining() < RECORD_SIZE) {
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        out.write(buf);
+                    }
+                    buf.clear();
+                }
+                buf.putLong(hashes[i]);
+                buf.putLong(entries[i]);
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Found exceptions when writing index", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+
+    /* 按hash对两个数组同时排序 */
+    private static void sort(long[] hashes, long[] entries, int lo, int hi) {
+        while (lo < hi) {
+            if (hi - lo < 16) {
+                for (int i = lo + 1; i <= hi; i++) {
+                    long h = hashes[i], e = entries[i];
+                    int j = i - 1;
+                    for (; j >= lo && hashes[j] > h; j--) {
+                        hashes[j + 1] = hashes[j];
+                        entries[j + 1] = entries[j];
+                    }
+                    hashes[j + 1] = h;
+                    entries[j + 1] = e;
+                }
+                return;
+            }
+            long pivot = hashes[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (hashes[i] < pivot) i++;
+                while (hashes[j] > pivot) j--;
+                if (i <= j) {
+                    long t = hashes[i]; hashes[i] = hashes[j]; hashes[j] = t;
+                    t = entries[i]; entries[i] = entries[j]; entries[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+            /* 递归处理较小的一半, 较大的一半继续循环, 避免栈过深 */
+            if (j - lo < hi - i) {
+                sort(hashes, entries, lo, j);
+                lo = i;
+            } else {
+                sort(hashes, entries, i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    public static RDBIndex open(File rdb) {
+        return open(rdb, indexFile(rdb));
+    }
+
+    /**
+     * 打开索引, RDB文件在建立索引之后被修改过时抛出异常
+     */
+    public static RDBIndex open(File rdb, File index) {
+        FileChannel rdbch = null;
+        FileChannel idxch = null;
+        try {
+            idxch = new FileInputStream(index).getChannel();
+            long size = idxch.size();
+            if (size < HEADER_SIZE) {
+                throw new IllegalArgumentException("Wrong signature in index " + index);
+            }
+            MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((size + CHUNK_MASK) >>> CHUNK_BITS)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = (long) i << CHUNK_BITS;
+                chunks[i] = idxch.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(size - start, 1L << CHUNK_BITS));
+            }
+            MappedByteBuffer header = chunks[0];
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IllegalArgumentException("Wrong signature in index " + index);
+            }
+            if (header.getLong() != rdb.length() || header.getLong() != rdb.lastModified()) {
+                throw new IllegalStateException("Index " + index + " is out of date");
+            }
+            long count = header.getLong();
+            if (count < 0 || HEADER_SIZE + count * RECORD_SIZE > size) {
+                throw new IllegalArgumentException("Index " + index + " is truncated");
+            }
+            rdbch = new FileInputStream(rdb).getChannel();
+            return new RDBIndex(rdbch, idxch, chunks, count);
+        } catch (IOException e) {
+            close(rdbch);
+            close(idxch);
+            throw new RuntimeException("Found exceptions when opening index", e);
+        } catch (RuntimeException e) {
+            close(rdbch);
+            close(idxch);
+            throw e;
+        }
+    }
+
+    private static void close(FileChannel ch) {
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    /* 索引中的key个数 */
+    public long size() {
+        return count;
+    }
+
+    /* 在所有数据库中查找key, 返回第一个找到的 */
+    public ParseRDB.Entry get(String key) {
+        return get(-1, key);
+    }
+
+    /**
+     * 查找key并只解析这一个entry, key按ParseRDB.CHARSET转换为字节后比较
+     * @param db 数据库编号, -1表示不限
+     * @param key
+     * @return 不存在时返回null
+     */
+    public ParseRDB.Entry get(int db, String key) {
+        return find(db, key.getBytes(ParseRDB.CHARSET), false);
+    }
+
+    /**
+     * 按原始字节查找key, 返回的entry和binary模式下解析的一样
+     * @param db 数据库编号, -1表示不限
+     * @param key
+     * @return 不存在时返回null
+     */
+    public ParseRDB.Entry get(int db, byte[] key) {
+        return find(db, key, true);
+    }
+
+    private ParseRDB.Entry find(int db, byte[] key, boolean binary) {
+        long h = hash(key);
+        /* 二分查找第一条hash相等的记录 */
+        long lo = 0, hi = count;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (hashAt(mid) < h) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        /* hash冲突时依次解析比较key */
+        for (long i = lo; i < count && hashAt(i) == h; i++) {
+            long e = getLong(HEADER_SIZE + i * RECORD_SIZE + 8);
+            int entryDb = (int) ((e >>> 48) & 0x00ff);
+            if (db >= 0 && entryDb != db) {
+                continue;
+            }
+            ParseRDB.Entry entry = load(e & OFFSET_MASK, entryDb);
+            if (Arrays.equals(key, entry.keyBytes)) {
+                /* 只有key相同时才解析value */
+                entry.binary = binary;
+                entry.getKey();
+                entry.getValue();
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private long hashAt(long i) {
+        return getLong(HEADER_SIZE + i * RECORD_SIZE);
+    }
+
+    /* 索引文件中pos位置的8个字节, pos是8的倍数, 不会跨段 */
+    private long getLong(long pos) {
+        return chunks[(int) (pos >>> CHUNK_BITS)].getLong((int) (pos & CHUNK_MASK));
+    }
+
+    /*
+     * 定位到offset, 只读取这一个entry
+     * key保持为字节, value只复制原始编码, hash冲突时不解析别的key的value
+     */
+    private ParseRDB.Entry load(long offset, int db) {
+        try {
+            synchronized (rdbch) {
+                rdbch.position(offset);
+                ParseRDB parser = new ParseRDB();
+                parser.setBinary(true);
+                parser.setValueMode(ParseRDB.VALUE_LAZY);
+                parser.initRange(new ChannelRDBInput(rdbch), db, Long.MAX_VALUE);
+                return parser.next();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Found exceptions when reading entry at " + offset, e);
+        }
+    }
+
+    public void close() {
+        close(rdbch);
+        close(idxch);
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+/**
+ *
+ * ParseRDB的数据来源, 屏蔽底层是FileChannel还是内存映射等读取方式
+ *
+ */
+public abstract class RDBInput {
+
+    /* 读取定长整数时复用的缓冲区, 避免每次调用都分配byte数组 */
+    private final byte[] scratch = new byte[8];
+
+    /**
+     * 读取num个字节到buf中
+     * @param buf
+     * @param start buf的起始下标
+     * @param num 读取的字节数
+     * @return 数据不足num个字节时返回false
+     */
+    public abstract boolean readBytes(byte[] buf, int start, int num);
+
+    /**
+     * 读取一个字节
+     * @return 0~255, 数据已读完时返回-1
+     */
+    public int read() {
+        if (!readBytes(scratch, 0, 1)) {
+            return -1;
+        }
+        return scratch[0] & 0x00ff;
+    }
+
+    /* 读取n个字节到scratch中, 数据不足时直接抛出异常 */
+    private byte[] readScratch(int n) {
+        if (!readBytes(scratch, 0, n)) {
+            throw new RuntimeException("Unexpected end of RDB input");
+        }
+        return scratch;
+    }
+
+    /* 有符号8位整数 */
+    public int readInt8() {
+        return readScratch(1)[0];
+    }
+
+    /* little endian的有符号16位整数 */
+    public int readInt16LE() {
+        byte[] b = readScratch(2);
+        return (short) (((b[1] & 0x00ff) << 8) | (b[0] & 0x00ff));
+    }
+
+    /* little endian的有符号32位整数 */
+    public int readInt32LE() {
+        byte[] b = readScratch(4);
+        return ((b[3] & 0x00ff) << 24) | ((b[2] & 0x00ff) << 16)
+                | ((b[1] & 0x00ff) << 8) | (b[0] & 0x00ff);
+    }
+
+    /* little endian的有符号64位整数 */
+    public long readInt64LE() {
+        byte[] b = readScratch(8);
+        long v = 0;
+        for (int i = 7; i >= 0; i--) {
+            v = (v << 8) | (b[i] & 0x00ff);
+        }
+        return v;
+    }
+
+    /* big endian的无符号32位整数, RDB的长度字段使用这种格式 */
+    public long readUInt32BE() {
+        byte[] b = readScratch(4);
+        return ((long) (b[0] & 0x00ff) << 24) | ((b[1] & 0x00ff) << 16)
+                | ((b[2] & 0x00ff) << 8) | (b[3] & 0x00ff);
+    }
+
+    /**
+     * 跳过n个字节
+     * @return 数据不足n个字节时返回false
+     */
+    public abstract boolean skip(long n);
+
+    /* 当前已读取到的位置(相对于数据源起始位置) */
+    public abstract long position();
+
+    /**
+     * 对之后读取和跳过的所有字节计算校验和, crc为null时停止计算
+     * 开启后跳过数据时也要把数据读出来, 不能直接seek
+     * @return 数据源不支持计算校验和时返回false
+     */
+    public boolean setChecksum(CRC64 crc) {
+        return false;
+    }
+
+    /* 从setChecksum()开始到当前位置为止所有字节的校验和 */
+    public long getChecksum() {
+        return 0;
+    }
+
+    public abstract void close();
+}
@@ -0,0 +1,389 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ * 把多个RDB文件合并为一个, 逐个entry流式读写, value不解析, 按块直接复制原始编码, 内存占用和文件大小以及最大的value都无关
+ * 输出文件的版本默认为输入文件中最高的版本, 所有类型(包括stream和模块)都原样复制;
+ * 指定更低的版本时, 这个版本不支持的编码才解析后重新编码
+ * AUX辅助字段(repl-*除外, 合并后的文件没有复制关系)和FUNCTION函数库按第一次出现的复制, LRU/LFU信息随key复制;
+ * MODULE_AUX不复制
+ * 每个输入文件可以把所有数据库映射到指定的数据库; 相同数据库中key重复时可以选择保留第一个或最后一个,
+ * 此时只记录key的两个独立的64位hash(每个key 16字节左右), 不同的key两个hash都相同的概率可以忽略
+ *
+ * 命令行: RDBMerger [-first|-last] [-version n] output.rdb input1.rdb[:db] input2.rdb[:db] ...
+ *
+ */
+public class RDBMerger {
+
+    /* 不检查重复的key, 适合输入的key互不相同的情况(比如按key分片的多个实例), redis加载重复的key会出错 */
+    public static final int COLLISION_IGNORE = 0;
+    /* 重复的key保留先出现的 */
+    public static final int COLLISION_FIRST_WINS = 1;
+    /* 重复的key保留最后出现的, 按相反的顺序处理输入文件 */
+    public static final int COLLISION_LAST_WINS = 2;
+
+    /* 保持原来的数据库编号 */
+    public static final int KEEP_DB = -1;
+
+    private final File output;
+
+    private final List<File> inputs = new ArrayList<File>();
+
+    private final List<Integer> dbs = new ArrayList<Integer>();
+
+    private int policy = COLLISION_IGNORE;
+
+    private long duplicates;
+
+    private long collisions;
+
+    /* 输出文件的版本, 0表示使用输入文件中最高的版本 */
+    private int version;
+
+    public RDBMerger(File output) {
+        this.output = output;
+    }
+
+    /* 添加输入文件, 保持原来的数据库编号 */
+    public void add(File input) {
+        add(input, KEEP_DB);
+    }
+
+    /**
+     * 添加输入文件
+     * @param input
+     * @param db 这个文件中所有的key都写到这个数据库, KEEP_DB表示保持原来的编号
+     */
+    public void add(File input, int db) {
+        inputs.add(input);
+        dbs.add(db);
+    }
+
+    /**
+     * @param policy COLLISION_IGNORE, COLLISION_FIRST_WINS, COLLISION_LAST_WINS
+     */
+    public void setCollisionPolicy(int policy) {
+        if (policy != COLLISION_IGNORE && policy != COLLISION_FIRST_WINS
+                && policy != COLLISION_LAST_WINS) {
+            throw new IllegalArgumentException("Unknown collision policy: " + policy);
+        }
+        this.policy = policy;
+    }
+
+    /**
+     * @param version 输出文件的RDB版本, RDBWriter.MIN_VERSION到MAX_VERSION, 0表示使用输入文件中最高的版本
+     */
+    public void setVersion(int version) {
+        if (version != 0 && (version < RDBWriter.MIN_VERSION || version > RDBWriter.MAX_VERSION)) {
+            throw new IllegalArgumentException("Unsupported RDB version: " + version);
+        }
+        this.version = version;
+    }
+
+    /* 因为重复被丢弃的key的个数 */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /* 不同的key第一个hash相同的次数, 这些key根据第二个hash区分, 都已写出 */
+    public long getHashCollisions() {
+        return collisions;
+    }
+
+    /**
+     * 合并所有输入文件, 先写到同一目录下的临时文件, 全部成功后才重命名为输出文件;
+     * 中途出错时删除临时文件, 不会留下被截断但校验和正确的RDB文件
+     * @return 写出的key的个数
+     */
+    public long merge() {
+        File dir = output.getAbsoluteFile().getParentFile();
+        File tmp;
+        try {
+            tmp = File.createTempFile(output.getName() + ".", ".tmp", dir);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot create temp file in " + dir, e);
+        }
+        boolean success = false;
+        try {
+            long count = merge(tmp);
+            Files.move(tmp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            success = true;
+            return count;
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot rename " + tmp + " to " + output, e);
+        } finally {
+            if (!success) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private long merge(File out) {
+        long count = 0;
+        duplicates = 0;
+        collisions = 0;
+        LongHashSet seen = policy == COLLISION_IGNORE ? null : new LongHashSet();
+        RDBWriter writer = new RDBWriter(out);
+        boolean success = false;
+        Set<String> auxWritten = new HashSet<String>();
+        Set<String> functionsWritten = new HashSet<String>();
+        try {
+            writer.setVersion(version != 0 ? version : inputVersion());
+            for (int i = 0; i < inputs.size(); i++) {
+                /* 保留最后一个相当于倒序处理时保留第一个 */
+                int n = policy == COLLISION_LAST_WINS ? inputs.size() - 1 - i : i;
+                int db = dbs.get(n);
+                ParseRDB rdb = new ParseRDB();
+                rdb.setBinary(true);
+                /* value不读到内存, 由writer直接从输入复制到输出 */
+                rdb.setValueMode(ParseRDB.VALUE_TRANSFER);
+                rdb.init(inputs.get(n));
+                try {
+                    ParseRDB.Entry entry = new ParseRDB.Entry();
+                    long base = seen == null ? 0 : seen.size;
+                    long hint = 0;
+                    int functions = 0;
+                    while (rdb.next(entry) != null) {
+                        functions = copyMetadata(rdb, writer, auxWritten, functionsWritten, functions);
+                        /* 读到REDIS_RESIZEDB时按文件中的key个数一次扩容 */
+                        if (seen != null && rdb.getKeyCountHint() != hint) {
+                            hint = rdb.getKeyCountHint();
+                            seen.ensureCapacity(base + hint);
+                        }
+                        if (db != KEEP_DB) {
+                            entry.db = db;
+                        }
+                        if (seen != null && !seen.add(RDBIndex.hash(entry.keyBytes) * 31 + entry.db,
+                                checkHash(entry.keyBytes) * 31 + entry.db)) {
+                            duplicates++;
+                            continue;
+                        }
+                        writer.write(entry, rdb);
+                        count++;
+                    }
+                    copyMetadata(rdb, writer, auxWritten, functionsWritten, functions);
+                } finally {
+                    rdb.close();
+                }
+            }
+            writer.close();
+            success = true;
+        } finally {
+            if (!success) {
+                writer.abort();
+            }
+            if (seen != null) {
+                collisions = seen.collisions;
+            }
+        }
+        return count;
+    }
+
+    /* 输入文件中最高的版本, 不低于RDBWriter.MIN_VERSION */
+    private int inputVersion() {
+        int max = RDBWriter.MIN_VERSION;
+        for (File input : inputs) {
+            ParseRDB rdb = new ParseRDB();
+            rdb.setVerifyChecksum(false);
+            rdb.init(input);
+            try {
+                max = Math.max(max, rdb.getVersion());
+            } finally {
+                rdb.close();
+            }
+        }
+        return max;
+    }
+
+    /**
+     * 复制到目前为止读到的AUX和FUNCTION, 同名的AUX和相同的函数库只写一次
+     * @param copied 这个文件中已经处理过的函数库个数
+     * @return 处理后的函数库个数
+     */
+    private static int copyMetadata(ParseRDB rdb, RDBWriter writer, Set<String> auxWritten,
+            Set<String> functionsWritten, int copied) {
+        for (Map.Entry<String, String> aux : rdb.getAux().entrySet()) {
+            if (!aux.getKey().startsWith("repl-") && auxWritten.add(aux.getKey())) {
+                writer.writeAux(aux.getKey(), aux.getValue());
+            }
+        }
+        List<byte[]> functions = rdb.getFunctions();
+        for (; copied < functions.size(); copied++) {
+            byte[] code = functions.get(copied);
+            /* redis加载时同名的函数库会出错, 完全相同的代码只保留一份 */
+            if (functionsWritten.add(new String(code, StandardCharsets.ISO_8859_1))) {
+                writer.writeFunction(code);
+            }
+        }
+        return copied;
+    }
+
+    /*
+     * 开放寻址的集合, 只用于判断key是否出现过
+     * 每个key记录两个独立的64位hash, 第一个相同而第二个不同的是hash冲突, 作为不同的key处理并计数
+     */
+    private static class LongHashSet {
+        /* 0表示空位置, 值为0时用FREE_KEY代替 */
+        private static final long FREE_KEY = 0x9E3779B97F4A7C15L;
+
+        private static final int MAX_TABLE = 1 << 30;
+
+        private long[] table = new long[1 << 16];
+        private long[] checks = new long[1 << 16];
+        private int size;
+        /* 第一个hash相同但第二个hash不同的次数 */
+        private long collisions;
+
+        /* 返回false表示已经存在 */
+        boolean add(long v, long check) {
+            if (v == 0) {
+                v = FREE_KEY;
+            }
+            int mask = table.length - 1;
+            int i = mix(v) & mask;
+            while (table[i] != 0) {
+                if (table[i] == v) {
+                    if (checks[i] == check) {
+                        return false;
+                    }
+                    collisions++;
+                }
+                i = (i + 1) & mask;
+            }
+            table[i] = v;
+            checks[i] = check;
+            if (++size > table.length / 2) {
+                if (table.length == MAX_TABLE) {
+                    /* 超过一半后继续插入会越来越慢, 填满时死循环 */
+                    if (size > MAX_TABLE / 4 * 3) {
+                        throw new IllegalStateException("Too many keys to check for duplicates: " + size);
+                    }
+                } else {
+                    rehash(table.length * 2);
+                }
+            }
+            return true;
+        }
+
+        /* 预留n个元素的空间, 避免逐步rehash */
+        void ensureCapacity(long n) {
+            long size = table.length;
+            while (size / 2 < n && size < MAX_TABLE) {
+                size *= 2;
+            }
+            if (size > table.length) {
+                rehash((int) size);
+            }
+        }
+
+        private static int mix(long v) {
+            v *= 0x9E3779B97F4A7C15L;
+            return (int) (v ^ (v >>> 32));
+        }
+
+        private void rehash(int length) {
+            long[] old = table;
+            long[] oldChecks = checks;
+            table = new long[length];
+            checks = new long[length];
+            int mask = table.length - 1;
+            for (int j = 0; j < old.length; j++) {
+                long v = old[j];
+                if (v != 0) {
+                    int i = mix(v) & mask;
+                    while (table[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    table[i] = v;
+                    checks[i] = oldChecks[j];
+                }
+            }
+        }
+    }
+
+    /* 和RDBIndex.hash独立的第二个64位hash(murmur3的finalizer逐8字节混合) */
+    static long checkHash(byte[] key) {
+        long h = 0x27D4EB2F165667C5L ^ key.length;
+        int i = 0;
+        for (; i + 8 <= key.length; i += 8) {
+            long k = 0;
+            for (int j = 7; j >= 0; j--) {
+                k = (k << 8) | (key[i + j] & 0x00ff);
+            }
+            h = fmix(h ^ fmix(k));
+        }
+        long k = 0;
+        for (int j = key.length - 1; j >= i; j--) {
+            k = (k << 8) | (key[j] & 0x00ff);
+        }
+        return fmix(h ^ fmix(k));
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    public static void main(String[] args) {
+        int policy = COLLISION_IGNORE;
+        int version = 0;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            if (args[i].equals("-first")) {
+                policy = COLLISION_FIRST_WINS;
+            } else if (args[i].equals("-last")) {
+                policy = COLLISION_LAST_WINS;
+            } else if (args[i].equals("-version") && i + 1 < args.length) {
+                version = Integer.parseInt(args[++i]);
+            } else {
+                usage();
+            }
+        }
+        if (args.length - i < 2) {
+            usage();
+        }
+        RDBMerger merger = new RDBMerger(new File(args[i++]));
+        merger.setCollisionPolicy(policy);
+        merger.setVersion(version);
+        for (; i < args.length; i++) {
+            /* input.rdb:1 表示把这个文件的key都写到1号数据库 */
+            String path = args[i];
+            int db = KEEP_DB;
+            int colon = path.lastIndexOf(':');
+            if (colon > 0 && path.substring(colon + 1).matches("\\d+")) {
+                db = Integer.parseInt(path.substring(colon + 1));
+                path = path.substring(0, colon);
+            }
+            merger.add(new File(path), db);
+        }
+        long start = System.currentTimeMillis();
+        long count = merger.merge();
+        System.out.println("keys : " + count + ", duplicates : " + merger.getDuplicates()
+                + ", hash collisions : " + merger.getHashCollisions()
+                + ", " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static void usage() {
+        System.err.println("Usage: RDBMerger [-first|-last] [-version n] output.rdb input1.rdb[:db] input2.rdb[:db] ...");
+        System.exit(1);
+    }
+}
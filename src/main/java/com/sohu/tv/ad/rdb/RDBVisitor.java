@@ -0,0 +1,50 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+/**
+ *
+ * 事件驱动的解析回调, ParseRDB一边解析一边回调, 不会把集合类型的value构建成Java集合,
+ * 无论一个key有多大, 内存占用都是固定的
+ * 每个key的回调顺序为: startKey, 若干个onXxx, endKey
+ *
+ */
+public interface RDBVisitor {
+
+    /**
+     * 开始一个key, entry中的key, type, db, expire, idle, freq已经解析, value为null
+     * REDIS_MODULE_2类型的key没有元素回调, stream类型的内容通过ParseRDB.setStreamVisitor()设置的StreamVisitor回调
+     */
+    void startKey(ParseRDB.Entry entry);
+
+    /* REDIS_STRING */
+    void onString(String value);
+
+    /* REDIS_LIST, REDIS_LIST_ZIPLIST, REDIS_LIST_QUICKLIST, REDIS_LIST_QUICKLIST_2 */
+    void onListItem(String item);
+
+    /* REDIS_SET, REDIS_SET_INTSET, REDIS_SET_LISTPACK */
+    void onSetMember(String member);
+
+    /* REDIS_HASH, REDIS_HASH_ZIPMAP, REDIS_HASH_ZIPLIST, REDIS_HASH_LISTPACK */
+    void onHashField(String field, String value);
+
+    /* REDIS_ZSET, REDIS_ZSET_2, REDIS_ZSET_ZIPLIST, REDIS_ZSET_LISTPACK */
+    void onZsetMember(String member, double score);
+
+    /* 当前key的所有元素都已回调 */
+    void endKey(ParseRDB.Entry entry);
+
+    /**
+     * REDIS_RESIZEDB, 在数据库的第一个key之前给出这个数据库的大小, 可以用来预分配
+     * @param db 数据库编号
+     * @param dbSize key的个数
+     * @param expiresSize 带过期时间的key的个数
+     */
+    void onResizeDb(int db, long dbSize, long expiresSize);
+
+    /* REDIS_AUX辅助字段, 如redis-ver, used-mem, 一般在第一个key之前 */
+    void onAux(String key, String value);
+}
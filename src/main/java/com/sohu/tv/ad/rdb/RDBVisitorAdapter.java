@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+/**
+ *
+ * RDBVisitor的空实现, 只需要覆盖关心的回调
+ *
+ */
+public abstract class RDBVisitorAdapter implements RDBVisitor {
+
+    @Override
+    public void startKey(ParseRDB.Entry entry) {
+    }
+
+    @Override
+    public void onString(String value) {
+    }
+
+    @Override
+    public void onListItem(String item) {
+    }
+
+    @Override
+    public void onSetMember(String member) {
+    }
+
+    @Override
+    public void onHashField(String field, String value) {
+    }
+
+    @Override
+    public void onZsetMember(String member, double score) {
+    }
+
+    @Override
+    public void endKey(ParseRDB.Entry entry) {
+    }
+
+    @Override
+    public void onResizeDb(int db, long dbSize, long expiresSize) {
+    }
+
+    @Override
+    public void onAux(String key, String value) {
+    }
+}
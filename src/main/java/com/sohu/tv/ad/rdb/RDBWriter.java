@@ -0,0 +1,868 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ * 把entry写成RDB文件(默认版本6, 通过setVersion()可以写版本6到11), 可以和ParseRDB配合, 边解析边过滤/修改后写出, 不需要redis进程
+ * 字符串超过20字节时尝试LZF压缩, 整数字符串使用整数编码;
+ * 元素较少的list, hash, zset使用ziplist编码, 整数组成的set使用intset编码(和redis 2.6的默认配置一致);
+ * VALUE_LAZY模式下解析的entry, 目标版本支持它的类型时直接写出value的原始编码(包括stream和模块类型),
+ * 只有目标版本比类型更旧时才解析后按版本6的编码重新写出, stream和模块类型不能降级;
+ * VALUE_TRANSFER模式下解析的entry通过write(Entry, ParseRDB)写出, value直接从输入复制到输出
+ *
+ * 使用方式:
+ * RDBWriter writer = new RDBWriter(new File("out.rdb"));
+ * while ((entry = rdb.next()) != null) {
+ *     writer.write(entry);
+ * }
+ * writer.close();	// 写入EOF和CRC64校验和
+ *
+ */
+public class RDBWriter {
+
+    public static final int RDB_VERSION = 6;
+
+    /* 可以写出的版本范围 */
+    public static final int MIN_VERSION = 6;
+    public static final int MAX_VERSION = 11;
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    /* 使用紧凑编码的条件, 和redis 2.6的默认配置一致 */
+    public static final int LIST_MAX_ZIPLIST_ENTRIES = 512;
+    public static final int LIST_MAX_ZIPLIST_VALUE = 64;
+    public static final int HASH_MAX_ZIPLIST_ENTRIES = 512;
+    public static final int HASH_MAX_ZIPLIST_VALUE = 64;
+    public static final int SET_MAX_INTSET_ENTRIES = 512;
+    public static final int ZSET_MAX_ZIPLIST_ENTRIES = 128;
+    public static final int ZSET_MAX_ZIPLIST_VALUE = 64;
+
+    /* 不超过这个长度的字符串不压缩 */
+    private static final int LZF_MIN_LENGTH = 20;
+
+    private final WritableByteChannel channel;
+
+    private final ByteBuffer buf;
+
+    /* buf中[0, crcPos)的部分已经计算过校验和 */
+    private int crcPos;
+
+    private final CRC64 crc = new CRC64();
+
+    private final LZFCompress lzf = new LZFCompress();
+
+    private byte[] lzfBuf = new byte[64];
+
+    /* 当前的数据库编号, 和entry的不一致时写入SELECTDB */
+    private int db = -1;
+
+    private boolean headerWritten;
+
+    private boolean finished;
+
+    /* 文件头中的版本号, 决定可以直接写出哪些类型 */
+    private int version = RDB_VERSION;
+
+    /* 下一个key的LRU空闲时间和LFU访问频率, 小于0表示没有 */
+    private long idle = -1;
+    private int freq = -1;
+
+    /* 正在拼装的ziplist或intset */
+    private byte[] blob = new byte[256];
+    private int blobLen;
+    private int zlPrev;
+    private int zlTail;
+    private int zlCount;
+
+    /* element()的结果, 元素的字节表示 */
+    private byte[] elemBuf;
+    private int elemOff;
+    private int elemLen;
+
+    /* parseLong()的结果 */
+    private long longValue;
+
+    public RDBWriter(File file) {
+        this(open(file), DEFAULT_BUFFER_SIZE);
+    }
+
+    public RDBWriter(OutputStream out) {
+        this(Channels.newChannel(out), DEFAULT_BUFFER_SIZE);
+    }
+
+    public RDBWriter(WritableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param channel
+     * @param bufferSize 写缓冲区的大小, 超过缓冲区的value直接写出(支持时和缓冲区的内容一起gather写出)
+     */
+    public RDBWriter(WritableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buf = ByteBuffer.allocate(Math.max(bufferSize, 64));
+    }
+
+    private static WritableByteChannel open(File file) {
+        try {
+            return new FileOutputStream(file).getChannel();
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException("Cannot open " + file, e);
+        }
+    }
+
+    /**
+     * 设置文件头中的版本号, 需要在写入第一个entry之前调用
+     * @param version MIN_VERSION到MAX_VERSION, 版本9开始写出entry的LRU/LFU信息
+     */
+    public void setVersion(int version) {
+        if (version < MIN_VERSION || version > MAX_VERSION) {
+            throw new IllegalArgumentException("Unsupported RDB version: " + version);
+        }
+        if (headerWritten) {
+            ERROR("RDB header is already written");
+        }
+        this.version = version;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * 写入一个entry, 数据库编号和上一个entry不同时先写入SELECTDB
+     * VALUE_LAZY模式下还没有解析的entry, 目标版本支持这个类型时直接写出原始编码, 否则按value的内容重新编码
+     * @param e
+     */
+    public void write(ParseRDB.Entry e) {
+        Object key = e.keyBytes != null ? e.keyBytes : e.key;
+        long expireMs = e.expire;
+        if (e.value == null && e.raw != null && version >= minVersion(e.type)) {
+            idle = e.idle;
+            freq = e.freq;
+            writeKey(e.db, key, e.type, expireMs);
+            put(e.raw, 0, e.raw.length);
+            return;
+        }
+        /* stream和模块的value只能原样写出, 解析后的内容不能重新编码 */
+        if (isStreamOrModule(e.type)) {
+            if (e.raw == null) {
+                ERROR("Value of type %d of key %s must be loaded with VALUE_LAZY to be written",
+                        e.type, e.getKey());
+            }
+            ERROR("Value of type %d of key %s cannot be written to RDB version %d",
+                    e.type, e.getKey(), version);
+        }
+        /* 目标版本不支持的编码(quicklist, listpack等)解析后重新按版本6的编码写出 */
+        Object value = e.getValue();
+        if (value == null) {
+            ERROR("Value of key %s was not loaded", e.getKey());
+        }
+        idle = e.idle;
+        freq = e.freq;
+        write(e.db, key, value, expireMs);
+    }
+
+    /**
+     * 写入VALUE_TRANSFER模式下读到的entry, 必须在rdb的下一次next()之前调用
+     * 目标版本支持这个类型时, value的原始编码从rdb的输入按块直接复制到输出, 不在内存中保存整个value;
+     * 否则解析后重新编码, stream和模块类型不能降级
+     * @param e rdb.next()返回的entry
+     * @param rdb 读到e的ParseRDB
+     */
+    public void write(ParseRDB.Entry e, ParseRDB rdb) {
+        Object key = e.keyBytes != null ? e.keyBytes : e.key;
+        if (version >= minVersion(e.type)) {
+            idle = e.idle;
+            freq = e.freq;
+            writeKey(e.db, key, e.type, e.expire);
+            rdb.transferValue(this);
+            return;
+        }
+        if (isStreamOrModule(e.type)) {
+            ERROR("Value of type %d of key %s cannot be written to RDB version %d",
+                    e.type, e.getKey(), version);
+        }
+        rdb.loadPendingValue(e);
+        write(e);
+    }
+
+    /* 支持这个类型的最低RDB版本, 不支持的类型返回Integer.MAX_VALUE */
+    static int minVersion(int type) {
+        if ((type >= ParseRDB.REDIS_STRING && type <= ParseRDB.REDIS_HASH)
+                || (type >= ParseRDB.REDIS_HASH_ZIPMAP && type <= ParseRDB.REDIS_HASH_ZIPLIST)) {
+            return MIN_VERSION;
+        }
+        switch (type) {
+            case ParseRDB.REDIS_LIST_QUICKLIST:
+                return 7;
+            case ParseRDB.REDIS_ZSET_2:
+            case ParseRDB.REDIS_MODULE_2:
+                return 8;
+            case ParseRDB.REDIS_STREAM_LISTPACKS:
+                return 9;
+            case ParseRDB.REDIS_HASH_LISTPACK:
+            case ParseRDB.REDIS_ZSET_LISTPACK:
+            case ParseRDB.REDIS_LIST_QUICKLIST_2:
+            case ParseRDB.REDIS_STREAM_LISTPACKS_2:
+                return 10;
+            case ParseRDB.REDIS_SET_LISTPACK:
+            case ParseRDB.REDIS_STREAM_LISTPACKS_3:
+                return 11;
+            default:
+                return Integer.MAX_VALUE;
+        }
+    }
+
+    private static boolean isStreamOrModule(int type) {
+        return type == ParseRDB.REDIS_MODULE_2 || type == ParseRDB.REDIS_STREAM_LISTPACKS
+                || type == ParseRDB.REDIS_STREAM_LISTPACKS_2 || type == ParseRDB.REDIS_STREAM_LISTPACKS_3;
+    }
+
+    /**
+     * 写入REDIS_AUX辅助字段, 版本7开始才有, 更低的版本直接忽略
+     */
+    public void writeAux(String key, String value) {
+        if (version < 7) {
+            return;
+        }
+        checkWritable();
+        put(ParseRDB.REDIS_AUX);
+        writeElement(key);
+        writeElement(value);
+    }
+
+    /**
+     * 写入REDIS_FUNCTION函数库代码, 版本10开始才有
+     */
+    public void writeFunction(byte[] code) {
+        if (version < 10) {
+            ERROR("Functions cannot be written to RDB version %d", version);
+        }
+        checkWritable();
+        put(ParseRDB.REDIS_FUNCTION);
+        writeString(code, 0, code.length);
+    }
+
+    /**
+     * 写入一个key
+     * @param db 数据库编号
+     * @param key String, byte[]或ByteString
+     * @param value String, byte[]或ByteString为字符串, 另外支持List, Set, Map, IntSet, ZSet;
+     *              集合的元素可以是String, byte[], ByteString或整数
+     * @param expireMs 过期时间(毫秒), 0表示不过期
+     */
+    public void write(int db, Object key, Object value, long expireMs) {
+        if (value instanceof List) {
+            writeList(db, key, (List<?>) value, expireMs);
+        } else if (value instanceof Set) {
+            writeSet(db, key, (Set<?>) value, expireMs);
+        } else if (value instanceof Map) {
+            writeHash(db, key, (Map<?, ?>) value, expireMs);
+        } else if (value instanceof ZSet) {
+            writeZSet(db, key, (ZSet) value, expireMs);
+        } else if (value instanceof IntSet) {
+            IntSet intset = (IntSet) value;
+            writeKey(db, key, ParseRDB.REDIS_SET_INTSET, expireMs);
+            writeIntSet(intset.toArray(), intset.size());
+        } else {
+            writeKey(db, key, ParseRDB.REDIS_STRING, expireMs);
+            writeElement(value);
+        }
+    }
+
+    private void writeList(int db, Object key, List<?> list, long expireMs) {
+        if (fitsZiplist(list, LIST_MAX_ZIPLIST_ENTRIES, LIST_MAX_ZIPLIST_VALUE)) {
+            writeKey(db, key, ParseRDB.REDIS_LIST_ZIPLIST, expireMs);
+            zlStart();
+            for (Object o : list) {
+                zlAdd(o);
+            }
+            writeBlob(zlFinish());
+            return;
+        }
+        writeKey(db, key, ParseRDB.REDIS_LIST, expireMs);
+        writeLength(list.size());
+        for (Object o : list) {
+            writeElement(o);
+        }
+    }
+
+    private void writeSet(int db, Object key, Set<?> set, long expireMs) {
+        if (set.size() <= SET_MAX_INTSET_ENTRIES) {
+            long[] values = new long[set.size()];
+            int n = 0;
+            for (Object o : set) {
+                element(o);
+                if (!parseLong(elemBuf, elemOff, elemLen)) {
+                    break;
+                }
+                values[n++] = longValue;
+            }
+            if (n == values.length) {
+                writeKey(db, key, ParseRDB.REDIS_SET_INTSET, expireMs);
+                Arrays.sort(values);
+                writeIntSet(values, n);
+                return;
+            }
+        }
+        writeKey(db, key, ParseRDB.REDIS_SET, expireMs);
+        writeLength(set.size());
+        for (Object o : set) {
+            writeElement(o);
+        }
+    }
+
+    private void writeHash(int db, Object key, Map<?, ?> map, long expireMs) {
+        if (fitsZiplist(map.keySet(), HASH_MAX_ZIPLIST_ENTRIES, HASH_MAX_ZIPLIST_VALUE)
+                && fitsZiplist(map.values(), HASH_MAX_ZIPLIST_ENTRIES, HASH_MAX_ZIPLIST_VALUE)) {
+            writeKey(db, key, ParseRDB.REDIS_HASH_ZIPLIST, expireMs);
+            zlStart();
+            for (Map.Entry<?, ?> field : map.entrySet()) {
+                zlAdd(field.getKey());
+                zlAdd(field.getValue());
+            }
+            writeBlob(zlFinish());
+            return;
+        }
+        writeKey(db, key, ParseRDB.REDIS_HASH, expireMs);
+        writeLength(map.size());
+        for (Map.Entry<?, ?> field : map.entrySet()) {
+            writeElement(field.getKey());
+            writeElement(field.getValue());
+        }
+    }
+
+    private void writeZSet(int db, Object key, ZSet zset, long expireMs) {
+        int size = zset.size();
+        boolean ziplist = size <= ZSET_MAX_ZIPLIST_ENTRIES;
+        for (int i = 0; i < size && ziplist; i++) {
+            ziplist = elementLength(zset.getMember(i)) <= ZSET_MAX_ZIPLIST_VALUE;
+        }
+        if (ziplist) {
+            /* ziplist中按score从小到大依次存放member和score */
+            writeKey(db, key, ParseRDB.REDIS_ZSET_ZIPLIST, expireMs);
+            zlStart();
+            for (int i = 0; i < size; i++) {
+                zlAdd(zset.getMember(i));
+                zlAdd(doubleBytes(zset.getScore(i)));
+            }
+            writeBlob(zlFinish());
+            return;
+        }
+        writeKey(db, key, ParseRDB.REDIS_ZSET, expireMs);
+        writeLength(size);
+        for (int i = 0; i < size; i++) {
+            writeElement(zset.getMember(i));
+            writeDouble(zset.getScore(i));
+        }
+    }
+
+    /* 文件头部, "REDIS"和4位版本号 */
+    private void writeHeader() {
+        if (!headerWritten) {
+            byte[] header = String.format("REDIS%04d", version).getBytes();
+            put(header, 0, header.length);
+            headerWritten = true;
+        }
+    }
+
+    private void checkWritable() {
+        if (finished) {
+            ERROR("RDB writer is already finished");
+        }
+        writeHeader();
+    }
+
+    /* 写入过期时间, LRU/LFU信息, 类型和key */
+    private void writeKey(int db, Object key, int type, long expireMs) {
+        checkWritable();
+        if (db != this.db) {
+            put(ParseRDB.REDIS_SELECTDB);
+            writeLength(db);
+            this.db = db;
+        }
+        if (expireMs > 0) {
+            put(ParseRDB.REDIS_EXPIRETIME_FC);
+            for (int i = 0; i < 8; i++) {
+                put((int) (expireMs >>> (i * 8)));
+            }
+        }
+        if (version >= 9) {
+            if (idle >= 0) {
+                put(ParseRDB.REDIS_IDLE);
+                writeLength(idle);
+            } else if (freq >= 0) {
+                put(ParseRDB.REDIS_FREQ);
+                put(freq);
+            }
+        }
+        idle = -1;
+        freq = -1;
+        put(type);
+        writeElement(key);
+    }
+
+    /* 长度编码: 6位, 14位, 0x80后面4字节或者0x81后面8字节(版本8开始) big endian */
+    private void writeLength(long len) {
+        if (len < (1 << 6)) {
+            put((int) len);
+        } else if (len < (1 << 14)) {
+            put((ParseRDB.REDIS_RDB_14BITLEN << 6) | (int) (len >> 8));
+            put((int) len);
+        } else if (len <= 0xffffffffL) {
+            put(ParseRDB.REDIS_RDB_32BITLEN << 6);
+            put((int) (len >>> 24));
+            put((int) (len >>> 16));
+            put((int) (len >>> 8));
+            put((int) len);
+        } else if (version >= 8) {
+            put(ParseRDB.REDIS_RDB_64BITLEN_FLAG);
+            for (int i = 56; i >= 0; i -= 8) {
+                put((int) (len >>> i));
+            }
+        } else {
+            ERROR("Length %d is too large for RDB version %d", len, version);
+        }
+    }
+
+    private void writeElement(Object o) {
+        element(o);
+        writeString(elemBuf, elemOff, elemLen);
+    }
+
+    /* 和redis一样, 依次尝试整数编码, LZF压缩, 最后原样写出 */
+    private void writeString(byte[] b, int off, int len) {
+        if (len <= 11 && parseLong(b, off, len)
+                && longValue >= Integer.MIN_VALUE && longValue <= Integer.MAX_VALUE) {
+            int v = (int) longValue;
+            int enc = ParseRDB.REDIS_RDB_ENCVAL << 6;
+            if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+                put(enc | ParseRDB.REDIS_RDB_ENC_INT8);
+                put(v);
+            } else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+                put(enc | ParseRDB.REDIS_RDB_ENC_INT16);
+                put(v);
+                put(v >> 8);
+            } else {
+                put(enc | ParseRDB.REDIS_RDB_ENC_INT32);
+                put(v);
+                put(v >> 8);
+                put(v >> 16);
+                put(v >> 24);
+            }
+            return;
+        }
+        if (len > LZF_MIN_LENGTH) {
+            int max = LZFCompress.maxCompressedLength(len);
+            if (lzfBuf.length < max) {
+                lzfBuf = new byte[Math.max(max, lzfBuf.length * 2)];
+            }
+            int clen = lzf.compress(b, off, len, lzfBuf, 0);
+            /* 至少节省4个字节才使用压缩, 和redis一致 */
+            if (clen <= len - 4) {
+                put((ParseRDB.REDIS_RDB_ENCVAL << 6) | ParseRDB.REDIS_RDB_ENC_LZF);
+                writeLength(clen);
+                writeLength(len);
+                put(lzfBuf, 0, clen);
+                return;
+            }
+        }
+        writeLength(len);
+        put(b, off, len);
+    }
+
+    /* ziplist和intset作为字符串写出 */
+    private void writeBlob(int len) {
+        writeString(blob, 0, len);
+    }
+
+    /* redis 2.6的格式: 1字节长度后面是字符串, 253, 254, 255分别表示NaN, 正无穷和负无穷 */
+    private void writeDouble(double d) {
+        if (Double.isNaN(d)) {
+            put(253);
+        } else if (d == Double.POSITIVE_INFINITY) {
+            put(254);
+        } else if (d == Double.NEGATIVE_INFINITY) {
+            put(255);
+        } else {
+            byte[] b = doubleBytes(d);
+            put(b.length);
+            put(b, 0, b.length);
+        }
+    }
+
+    /* 整数直接写成整数, 否则使用能精确还原的最短形式 */
+    static byte[] doubleBytes(double d) {
+        if (Double.isNaN(d)) {
+            return "nan".getBytes();
+        } else if (Double.isInfinite(d)) {
+            return (d > 0 ? "inf" : "-inf").getBytes();
+        }
+        if (d == Math.rint(d) && Math.abs(d) < 1e17) {
+            if (d == 0 && 1 / d < 0) {
+                return "-0".getBytes();
+            }
+            return ParseRDB.toDecimalBytes((long) d);
+        }
+        return Double.toString(d).getBytes();
+    }
+
+    private void writeIntSet(long[] values, int n) {
+        int encoding = 2;
+        for (int i = 0; i < n; i++) {
+            long v = values[i];
+            if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+                encoding = 8;
+                break;
+            } else if (v < Short.MIN_VALUE || v > Short.MAX_VALUE) {
+                encoding = 4;
+            }
+        }
+        blobLen = 0;
+        ensureBlob(8 + n * encoding);
+        putLE(encoding, 4);
+        putLE(n, 4);
+        for (int i = 0; i < n; i++) {
+            putLE(values[i], encoding);
+        }
+        writeBlob(blobLen);
+    }
+
+    /* 元素个数和每个元素的长度都不超过限制时才使用ziplist编码 */
+    private boolean fitsZiplist(Collection<?> c, int maxEntries, int maxValue) {
+        if (c.size() > maxEntries) {
+            return false;
+        }
+        for (Object o : c) {
+            if (elementLength(o) > maxValue) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* 不转换为byte数组, 计算元素按ParseRDB.CHARSET(UTF-8)编码后的字节数 */
+    private static int elementLength(Object o) {
+        if (o instanceof String) {
+            String s = (String) o;
+            int len = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    len++;
+                } else if (c < 0x800) {
+                    len += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    len += 4;
+                    i++;
+                } else if (Character.isSurrogate(c)) {
+                    /* 不成对的代理字符编码为'?' */
+                    len++;
+                } else {
+                    len += 3;
+                }
+            }
+            return len;
+        } else if (o instanceof byte[]) {
+            return ((byte[]) o).length;
+        } else if (o instanceof ByteString) {
+            return ((ByteString) o).length();
+        }
+        return 20;
+    }
+
+    /* 取元素的字节表示, 放在elemBuf, elemOff, elemLen中 */
+    private void element(Object o) {
+        if (o instanceof byte[]) {
+            elemBuf = (byte[]) o;
+            elemOff = 0;
+            elemLen = elemBuf.length;
+        } else if (o instanceof ByteString) {
+            ByteString bs = (ByteString) o;
+            elemBuf = bs.array();
+            elemOff = bs.offset();
+            elemLen = bs.length();
+        } else if (o instanceof String) {
+            elemBuf = ((String) o).getBytes(ParseRDB.CHARSET);
+            elemOff = 0;
+            elemLen = elemBuf.length;
+        } else if (o instanceof Long || o instanceof Integer || o instanceof Short
+                || o instanceof Byte) {
+            elemBuf = ParseRDB.toDecimalBytes(((Number) o).longValue());
+            elemOff = 0;
+            elemLen = elemBuf.length;
+        } else {
+            ERROR("Unsupported value type: %s", o == null ? "null" : o.getClass().getName());
+        }
+    }
+
+    /* 是否为能还原成相同字符串的整数(没有多余的0和正号), 结果放在longValue中 */
+    private boolean parseLong(byte[] b, int off, int len) {
+        if (len == 0 || len > 20) {
+            return false;
+        }
+        int i = off, end = off + len;
+        boolean negative = b[i] == '-';
+        if (negative && ++i == end) {
+            return false;
+        }
+        if (b[i] == '0' && (end - i > 1 || negative)) {
+            return false;
+        }
+        long v = 0;
+        for (; i < end; i++) {
+            int d = b[i] - '0';
+            if (d < 0 || d > 9) {
+                return false;
+            }
+            /* 按负数累加, 可以表示Long.MIN_VALUE */
+            if (v < (Long.MIN_VALUE + d) / 10) {
+                return false;
+            }
+            v = v * 10 - d;
+        }
+        if (!negative) {
+            if (v == Long.MIN_VALUE) {
+                return false;
+            }
+            v = -v;
+        }
+        longValue = v;
+        return true;
+    }
+
+    private void zlStart() {
+        blobLen = 10;
+        ensureBlob(blobLen);
+        zlPrev = 0;
+        zlTail = blobLen;
+        zlCount = 0;
+    }
+
+    private void zlAdd(Object o) {
+        element(o);
+        zlAdd(elemBuf, elemOff, elemLen);
+    }
+
+    private void zlAdd(byte[] b) {
+        zlAdd(b, 0, b.length);
+    }
+
+    /* 添加一个entry: 前一个entry的长度, 编码和数据, 能转换为整数的字符串使用整数编码 */
+    private void zlAdd(byte[] b, int off, int len) {
+        ensureBlob(blobLen + 5 + 9 + len);
+        int start = blobLen;
+        if (zlPrev < ZipList.ZIPLIST_PREV_ENTRY_LENGTH) {
+            blob[blobLen++] = (byte) zlPrev;
+        } else {
+            blob[blobLen++] = (byte) ZipList.ZIPLIST_PREV_ENTRY_LENGTH;
+            putLE(zlPrev, 4);
+        }
+        if (len <= 20 && parseLong(b, off, len)) {
+            long v = longValue;
+            if (v >= 0 && v <= 12) {
+                blob[blobLen++] = (byte) (0xf1 + v);
+            } else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+                blob[blobLen++] = (byte) 0xfe;
+                putLE(v, 1);
+            } else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+                blob[blobLen++] = (byte) 0xc0;
+                putLE(v, 2);
+            } else if (v >= -(1 << 23) && v < (1 << 23)) {
+                blob[blobLen++] = (byte) 0xf0;
+                putLE(v, 3);
+            } else if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) {
+                blob[blobLen++] = (byte) 0xd0;
+                putLE(v, 4);
+            } else {
+                blob[blobLen++] = (byte) 0xe0;
+                putLE(v, 8);
+            }
+        } else {
+            if (len < (1 << 6)) {
+                blob[blobLen++] = (byte) len;
+            } else if (len < (1 << 14)) {
+                blob[blobLen++] = (byte) (0x40 | (len >> 8));
+                blob[blobLen++] = (byte) len;
+            } else {
+                blob[blobLen++] = (byte) 0x80;
+                blob[blobLen++] = (byte) (len >>> 24);
+                blob[blobLen++] = (byte) (len >>> 16);
+                blob[blobLen++] = (byte) (len >>> 8);
+                blob[blobLen++] = (byte) len;
+            }
+            System.arraycopy(b, off, blob, blobLen, len);
+            blobLen += len;
+        }
+        zlTail = start;
+        zlPrev = blobLen - start;
+        zlCount++;
+    }
+
+    /* 写入结束符和头部, 返回ziplist的长度 */
+    private int zlFinish() {
+        ensureBlob(blobLen + 1);
+        blob[blobLen++] = (byte) ZipList.ZIPLIST_END;
+        int len = blobLen;
+        blobLen = 0;
+        putLE(len, 4);
+        putLE(zlTail, 4);
+        putLE(Math.min(zlCount, 0xffff), 2);
+        blobLen = len;
+        return len;
+    }
+
+    private void ensureBlob(long len) {
+        if (len > blob.length) {
+            if (len > Integer.MAX_VALUE - 8) {
+                ERROR("Value is too large (%d bytes)", len);
+            }
+            blob = Arrays.copyOf(blob, (int) Math.max(len, Math.min(blob.length * 2L, Integer.MAX_VALUE - 8)));
+        }
+    }
+
+    /* little endian写入blob */
+    private void putLE(long v, int n) {
+        for (int i = 0; i < n; i++) {
+            blob[blobLen++] = (byte) (v >>> (i * 8));
+        }
+    }
+
+    private void put(int b) {
+        if (!buf.hasRemaining()) {
+            flush();
+        }
+        buf.put((byte) b);
+    }
+
+    /* ParseRDB.transferValue()复制的原始编码 */
+    void putRaw(int b) {
+        put(b);
+    }
+
+    void putRaw(byte[] b, int off, int len) {
+        put(b, off, len);
+    }
+
+    private void put(byte[] b, int off, int len) {
+        if (len <= buf.remaining()) {
+            buf.put(b, off, len);
+            return;
+        }
+        if (len < buf.capacity()) {
+            flush();
+            buf.put(b, off, len);
+            return;
+        }
+        /* 比缓冲区还大的value不复制, 和缓冲区的内容一起写出 */
+        updateCrc();
+        crc.update(b, off, len);
+        buf.flip();
+        ByteBuffer big = ByteBuffer.wrap(b, off, len);
+        try {
+            if (channel instanceof GatheringByteChannel) {
+                ByteBuffer[] bufs = { buf, big };
+                while (big.hasRemaining()) {
+                    ((GatheringByteChannel) channel).write(bufs);
+                }
+            } else {
+                writeFully(buf);
+                writeFully(big);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Found exceptions when writing RDB", e);
+        }
+        buf.clear();
+        crcPos = 0;
+    }
+
+    private void updateCrc() {
+        crc.update(buf.array(), buf.arrayOffset() + crcPos, buf.position() - crcPos);
+        crcPos = buf.position();
+    }
+
+    private void writeFully(ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            channel.write(b);
+        }
+    }
+
+    /* 把缓冲区的内容写出 */
+    public void flush() {
+        updateCrc();
+        buf.flip();
+        try {
+            writeFully(buf);
+        } catch (IOException e) {
+            throw new RuntimeException("Found exceptions when writing RDB", e);
+        }
+        buf.clear();
+        crcPos = 0;
+    }
+
+    /**
+     * 写入EOF和CRC64校验和, 之后不能再写入entry
+     */
+    public void finish() {
+        if (finished) {
+            return;
+        }
+        writeHeader();
+        put(ParseRDB.REDIS_EOF);
+        updateCrc();
+        long checksum = crc.getValue();
+        for (int i = 0; i < 8; i++) {
+            put((int) (checksum >>> (i * 8)));
+        }
+        flush();
+        finished = true;
+    }
+
+    /* 写入EOF和校验和, 然后关闭 */
+    public void close() {
+        try {
+            finish();
+        } finally {
+            closeChannel();
+        }
+    }
+
+    /**
+     * 出错时放弃写入: 不写EOF和校验和直接关闭, 已经写出的内容不是完整的RDB文件
+     * 之后不能再写入entry
+     */
+    public void abort() {
+        finished = true;
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {}
+    }
+
+    static void ERROR(String msg, Object... args) {
+        throw new RuntimeException(String.format(msg, args));
+    }
+}
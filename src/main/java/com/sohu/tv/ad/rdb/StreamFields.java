@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+import java.util.Arrays;
+
+/**
+ *
+ * stream中一条消息的字段, 直接引用listpack节点的byte数组, 不复制数据, 每条消息复用同一个对象
+ * 第i个字段的名称下标为2*i, 值为2*i+1; 整数编码的通过getLong()取值,
+ * 字符串编码的通过getOffset()/getLength()引用getArray()
+ *
+ */
+public class StreamFields {
+
+    private byte[] array;
+
+    /* 字段个数 */
+    private int size;
+
+    /* 节点的master字段个数, 放在slot的开头, 当前消息的元素放在base之后 */
+    private int base;
+
+    private boolean[] integer = new boolean[16];
+    private long[] longs = new long[16];
+    private int[] offsets = new int[16];
+    private int[] lengths = new int[16];
+
+    /* 开始一个listpack节点 */
+    void reset(byte[] array, int masterCount) {
+        this.array = array;
+        this.base = masterCount;
+        this.size = 0;
+        ensure(masterCount);
+    }
+
+    /* 开始一条消息 */
+    void start(int fieldCount) {
+        this.size = fieldCount;
+        ensure(base + fieldCount * 2);
+    }
+
+    /* 把游标当前的元素记录到slot中 */
+    void set(int slot, PackedList cursor) {
+        integer[slot] = cursor.isInteger();
+        longs[slot] = cursor.getLong();
+        offsets[slot] = cursor.getOffset();
+        lengths[slot] = cursor.getLength();
+    }
+
+    /* 记录节点的第i个master字段 */
+    void setMaster(int i, PackedList cursor) {
+        set(i, cursor);
+    }
+
+    /* 当前消息的第k个元素 */
+    void setElement(int k, PackedList cursor) {
+        set(base + k, cursor);
+    }
+
+    /* SAMEFIELDS的消息只保存值, 字段名为master字段 */
+    void copyMaster(int i) {
+        int slot = base + i * 2;
+        integer[slot] = integer[i];
+        longs[slot] = longs[i];
+        offsets[slot] = offsets[i];
+        lengths[slot] = lengths[i];
+    }
+
+    private void ensure(int n) {
+        if (n > integer.length) {
+            int len = Math.max(n, integer.length * 2);
+            integer = Arrays.copyOf(integer, len);
+            longs = Arrays.copyOf(longs, len);
+            offsets = Arrays.copyOf(offsets, len);
+            lengths = Arrays.copyOf(lengths, len);
+        }
+    }
+
+    /* 字段个数 */
+    public int size() {
+        return size;
+    }
+
+    public boolean isInteger(int k) {
+        return integer[slot(k)];
+    }
+
+    public long getLong(int k) {
+        return longs[slot(k)];
+    }
+
+    public int getOffset(int k) {
+        return offsets[slot(k)];
+    }
+
+    public int getLength(int k) {
+        return lengths[slot(k)];
+    }
+
+    /* listpack节点的byte数组 */
+    public byte[] getArray() {
+        return array;
+    }
+
+    /* 第k个元素转换为String, 会创建对象 */
+    public String getString(int k) {
+        int slot = slot(k);
+        if (integer[slot]) {
+            return String.valueOf(longs[slot]);
+        }
+        return PackedList.byteToString(array, offsets[slot], lengths[slot]);
+    }
+
+    private int slot(int k) {
+        if (k < 0 || k >= size * 2) {
+            throw new IndexOutOfBoundsException("Element " + k + " of " + size + " fields");
+        }
+        return base + k;
+    }
+}
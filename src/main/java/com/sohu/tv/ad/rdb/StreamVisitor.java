@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+/**
+ *
+ * stream类型(REDIS_STREAM_LISTPACKS*)的解析回调, 通过ParseRDB.setStreamVisitor()设置
+ * 每次只读入一个listpack节点, 消息ID和字段都以基本类型回调, 千万级消息的stream内存占用也是固定的
+ * 每个stream的回调顺序为: startStream, 若干个onEntry, onStreamInfo,
+ * 每个消费组一个onGroup, 然后是这个组的onGroupPending和onConsumer(后面跟着这个消费者的onConsumerPending), endStream
+ * 消息ID的毫秒部分为ms, 序号部分为seq
+ *
+ */
+public interface StreamVisitor {
+
+    /* 开始一个stream, entry中的key, type, db, expire已经解析 */
+    void startStream(ParseRDB.Entry entry);
+
+    /**
+     * 一条消息, 已删除的消息不回调
+     * @param fields 字段名和值, 只在回调期间有效, 下一次回调时会被覆盖
+     */
+    void onEntry(long ms, long seq, StreamFields fields);
+
+    /**
+     * 所有消息之后的stream元数据, RDB中没有的为-1(REDIS_STREAM_LISTPACKS没有first, maxDeleted和entriesAdded)
+     * @param length 消息个数
+     * @param lastMs, lastSeq 最后生成的ID
+     * @param firstMs, firstSeq 第一条消息的ID
+     * @param maxDeletedMs, maxDeletedSeq 删除的最大ID
+     * @param entriesAdded 一共添加过的消息个数
+     */
+    void onStreamInfo(long length, long lastMs, long lastSeq, long firstMs, long firstSeq,
+            long maxDeletedMs, long maxDeletedSeq, long entriesAdded);
+
+    /**
+     * 一个消费组
+     * @param lastMs, lastSeq 最后投递的ID
+     * @param entriesRead 已读取的消息个数, REDIS_STREAM_LISTPACKS中没有时为-1
+     */
+    void onGroup(String name, long lastMs, long lastSeq, long entriesRead);
+
+    /* 当前消费组中已投递未确认的消息, deliveryTime为毫秒时间戳 */
+    void onGroupPending(long ms, long seq, long deliveryTime, long deliveryCount);
+
+    /* 当前消费组的一个消费者, activeTime只在REDIS_STREAM_LISTPACKS_3中有, 否则为-1 */
+    void onConsumer(String name, long seenTime, long activeTime);
+
+    /* 当前消费者持有的未确认消息 */
+    void onConsumerPending(long ms, long seq);
+
+    /* 当前stream的所有内容都已回调 */
+    void endStream(ParseRDB.Entry entry);
+}
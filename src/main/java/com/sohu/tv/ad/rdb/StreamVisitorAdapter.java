@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+/**
+ *
+ * StreamVisitor的空实现, 只需要覆盖关心的回调
+ *
+ */
+public abstract class StreamVisitorAdapter implements StreamVisitor {
+
+    @Override
+    public void startStream(ParseRDB.Entry entry) {
+    }
+
+    @Override
+    public void onEntry(long ms, long seq, StreamFields fields) {
+    }
+
+    @Override
+    public void onStreamInfo(long length, long lastMs, long lastSeq, long firstMs, long firstSeq,
+            long maxDeletedMs, long maxDeletedSeq, long entriesAdded) {
+    }
+
+    @Override
+    public void onGroup(String name, long lastMs, long lastSeq, long entriesRead) {
+    }
+
+    @Override
+    public void onGroupPending(long ms, long seq, long deliveryTime, long deliveryCount) {
+    }
+
+    @Override
+    public void onConsumer(String name, long seenTime, long activeTime) {
+    }
+
+    @Override
+    public void onConsumerPending(long ms, long seq) {
+    }
+
+    @Override
+    public void endStream(ParseRDB.Entry entry) {
+    }
+}
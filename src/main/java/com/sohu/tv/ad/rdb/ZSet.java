@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+import java.util.Arrays;
+
+/**
+ *
+ * 有序集合的value, 用两个平行数组保存score和member, 按score从小到大排序,
+ * score相同时按member的字节排序(和redis的memcmp一致); score不装箱, 相同score的member也不会丢失
+ * member在binary模式下为ByteString, 否则为String
+ *
+ */
+public class ZSet {
+
+    private double[] scores;
+
+    private Object[] members;
+
+    private int size;
+
+    public ZSet() {
+        this(8);
+    }
+
+    /* capacity为预计的元素个数 */
+    public ZSet(int capacity) {
+        scores = new double[Math.max(capacity, 1)];
+        members = new Object[Math.max(capacity, 1)];
+    }
+
+    /* 添加元素, 解析完后需要调用sort() */
+    void add(Object member, double score) {
+        if (size == scores.length) {
+            scores = Arrays.copyOf(scores, size * 2);
+            members = Arrays.copyOf(members, size * 2);
+        }
+        scores[size] = score;
+        members[size] = member;
+        size++;
+    }
+
+    /*
+     * ziplist和listpack编码本身就是有序的, 解析时直接使用文件中的顺序, 不调用sort();
+     * 新版本skiplist编码从尾到头保存, 是逆序的, 不需要真正排序, 只有老版本按dict顺序保存的才需要排序
+     */
+    void sort() {
+        if (isSorted(1)) {
+            return;
+        }
+        if (isSorted(-1)) {
+            for (int i = 0, j = size - 1; i < j; i++, j--) {
+                swap(i, j);
+            }
+            return;
+        }
+        sort(0, size - 1);
+    }
+
+    private boolean isSorted(int direction) {
+        for (int i = 1; i < size; i++) {
+            if (compare(i - 1, i) * direction > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int compare(int i, int j) {
+        int c = Double.compare(scores[i], scores[j]);
+        if (c != 0) {
+            return c;
+        }
+        Object a = members[i], b = members[j];
+        if (a instanceof ByteString) {
+            return ((ByteString) a).compareTo((ByteString) b);
+        }
+        return compareBytes((String) a, (String) b);
+    }
+
+    /*
+     * 按解析前的字节比较String, String.compareTo按UTF-16比较, 非ASCII字符的顺序和memcmp不同
+     * ASCII部分直接比较字符, 遇到不同的非ASCII字符时才转换为字节
+     */
+    static int compareBytes(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        for (int k = 0; k < n; k++) {
+            char x = a.charAt(k), y = b.charAt(k);
+            if (x != y) {
+                if (x < 0x80 && y < 0x80) {
+                    return x - y;
+                }
+                return new ByteString(a.getBytes(ParseRDB.CHARSET))
+                        .compareTo(new ByteString(b.getBytes(ParseRDB.CHARSET)));
+            }
+        }
+        return a.length() - b.length();
+    }
+
+    private void swap(int i, int j) {
+        double s = scores[i];
+        scores[i] = scores[j];
+        scores[j] = s;
+        Object m = members[i];
+        members[i] = members[j];
+        members[j] = m;
+    }
+
+    private void sort(int lo, int hi) {
+        while (lo < hi) {
+            if (hi - lo < 16) {
+                for (int i = lo + 1; i <= hi; i++) {
+                    for (int j = i; j > lo && compare(j - 1, j) > 0; j--) {
+                        swap(j - 1, j);
+                    }
+                }
+                return;
+            }
+            /* 把中间的元素换到hi作为基准 */
+            swap((lo + hi) >>> 1, hi);
+            int p = lo;
+            for (int i = lo; i < hi; i++) {
+                if (compare(i, hi) < 0) {
+                    swap(i, p++);
+                }
+            }
+            swap(p, hi);
+            if (p - lo < hi - p) {
+                sort(lo, p - 1);
+                lo = p + 1;
+            } else {
+                sort(p + 1, hi);
+                hi = p - 1;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /* 排名为i的member */
+    public Object getMember(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException("index: " + i);
+        }
+        return members[i];
+    }
+
+    /* 排名为i的score */
+    public double getScore(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException("index: " + i);
+        }
+        return scores[i];
+    }
+
+    /* member的排名, 不存在时返回-1 */
+    public int rank(Object member) {
+        for (int i = 0; i < size; i++) {
+            if (members[i].equals(member)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(members[i]).append('=').append(scores[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -4,16 +4,17 @@
  */
 package com.sohu.tv.ad.rdb;
 
-import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 
 /**
  *
  * 解析ZipList类型数据
+ * 以游标的方式遍历, 见PackedList
  * @author Wang GangHua
  * @version 1.0.0 2013-11-31
  *
  */
-public class ZipList {
+public class ZipList extends PackedList {
 
 	public static final int ZIPLIST_PREV_ENTRY_LENGTH=254;
 	public static final int ZIPLIST_END=255;	//zip list结束符
@@ -23,36 +24,43 @@ public class ZipList {
     public static final int ZIPLIST_ENTRY_FLAG_6BITLEN = 0;	//6位用于计数
     public static final int ZIPLIST_ENTRY_FLAG_14BITLEN = 1;
     public static final int ZIPLIST_ENTRY_FLAG_5BYTELEN = 2; 	//5字节用于计数
-    public static final int ZIPLIST_ENTRY_FLAG_N2BYTEVLAUE = 12;	//后面2字节的无符号整数就是entry值
+    public static final int ZIPLIST_ENTRY_FLAG_N2BYTEVLAUE = 12;	//后面2字节的有符号整数就是entry值
     public static final int ZIPLIST_ENTRY_FLAG_N4BYTEVLAUE = 13;
     public static final int ZIPLIST_ENTRY_FLAG_N8BYTEVLAUE = 14;
     public static final int ZIPLIST_ENTRY_FLAG_N3BYTEVLAUE = 0;
     public static final int ZIPLIST_ENTRY_FLAG_N1BYTEVLAUE = 14;
 
+	/* entry个数超过65534时头部的计数为这个值, 需要遍历才能得到 */
+	public static final int ZIPLIST_COUNT_UNKNOWN = 65535;
+
+	/* ziplist头部: 4字节总长度, 4字节最后一个entry的偏移量, 2字节entry个数 */
+	private static final int ZIPLIST_HEADER_SIZE = 10;
 
-	private final byte[] ziplistByte;	//zip list数据
 	private int index; //byte数组下标
 
 	public ZipList(byte[] ziplistByte) {
-		super();
-		this.ziplistByte = ziplistByte;
+		super(ziplistByte);
+		if (array.length < ZIPLIST_HEADER_SIZE + 1) {
+			ERROR("Ziplist too short (%d bytes)", array.length);
+		}
 		/*
-		 * 从第9个字节开始，跳过前面8个字节，其中前4个字节表示ziplist的长度，
-		 * 后4个字节表示最后一个entry在ziplist中的相对偏移量
+		 * 从第11个字节开始，跳过前面10个字节，其中前4个字节表示ziplist的长度，
+		 * 后4个字节表示最后一个entry在ziplist中的相对偏移量, 最后2个字节为entry个数
 		 * */
-		this.index = 8;
+		this.index = ZIPLIST_HEADER_SIZE;
 	}
 
 	int getEndByte(){
-		return ziplistByte[index];
+		return array[index] & 0x00ff;
 	}
 
 	/*
 	 * 占1或5个字节,表示前一个entry的字节长度，第一个entry是0
 	 * 如果第一个字节整型值等于254,则后面的4个字节表示长度,否则第一个字节整型值就是长度
+	 * 遍历时不需要前一个entry的长度, 直接跳过
      * */
 	private void decodePrevEntryFlag() {
-		int len = prevEntryIntegerValue();
+		int len = array[index] & 0x00ff;
 		if (len < ZIPLIST_PREV_ENTRY_LENGTH) {
 			index++;
 		} else {
@@ -60,28 +68,30 @@ public class ZipList {
 		}
 	}
 
-	 /*
-	  * 前一个entry占用的字节数
-	  * */
-	private int prevEntryIntegerValue() {
-		int len = ziplistByte[index];
-		if (len < ZIPLIST_PREV_ENTRY_LENGTH)
-			return len;
-		len = ((ziplistByte[index + 4] & 0x00ff) << 24)
-				+ ((ziplistByte[index + 3] & 0x00ff) << 16)
-				+ ((ziplistByte[index + 2] & 0x00ff) << 8)
-				+ ((ziplistByte[index + 1] & 0x00ff));
-		return len;
-	}
-
 	public int decodeEntryCount() {
 		/*
-		 * 占2个字节,entry的个数,key和value都是一个entry,所以解析Map的for循环次数要除以2
+		 * 占2个字节(little endian),entry的个数,key和value都是一个entry,所以解析Map的for循环次数要除以2
+		 * 等于65535时表示entry个数超出了2字节的范围, 需要遍历才能得到
 		 * */
-		int entryCount = (((ziplistByte[index + 1] & 0x003F) << 8) | (ziplistByte[index] & 0x00ff));
-		// 解析了2个字节，下标移动2个位置
-		index = index + 2;
-		return entryCount;
+		return ((array[9] & 0x00ff) << 8) | (array[8] & 0x00ff);
+	}
+
+	/**
+	 * 游标移动到下一个entry
+	 * @return 已经到达ziplist结束符时返回false
+	 */
+	@Override
+	public boolean next() {
+		if (index >= array.length || getEndByte() == ZIPLIST_END) {
+			return false;
+		}
+		decodePrevEntryFlag();
+		decodeEntrySpecialFlag();
+		if (!isInteger && offset + length > array.length) {
+			ERROR("Ziplist entry length %d out of range", length);
+		}
+		index = offset + length;
+		return true;
 	}
 
 	/**
@@ -89,120 +99,91 @@ public class ZipList {
 	 * @return
 	 */
 	public String decodeEntryValue() {
-		decodePrevEntryFlag();
-
-		Integer[] object = decodeEntrySpecialFlag();
-		int entryDataByteLen = object[0];	// entry数据的字节长度
-
-		String value;
-		if(object[1] != null){
-			value = String.valueOf(object[1]);
-		}else {
-			value = byteToString(subbyte(ziplistByte, index, entryDataByteLen));
+		if (!next()) {
+			ERROR("No more entries in ziplist");
+		}
+		if (isInteger) {
+			return String.valueOf(longValue);
 		}
-		index = index + entryDataByteLen;
-    	return value;
+		return byteToString(array, offset, length);
     }
 
+	/**
+	 * entry的原始字节, 整数编码的entry返回十进制数字
+	 * @return
+	 */
+	public byte[] decodeEntryBytes() {
+		if (!next()) {
+			ERROR("No more entries in ziplist");
+		}
+		if (isInteger) {
+			return ParseRDB.toDecimalBytes(longValue);
+		}
+		return Arrays.copyOfRange(array, offset, offset + length);
+	}
+
     /**
-     * special flag,占用字节数1到9之间, 用于表示entry数据占的字节长度或entry的整型值
-     * @param value
-     * @param index
-     * @return Integer[] [entry data bytes length , entry integer value]
+     * special flag,占用字节数1到5之间, 用于表示entry数据占的字节长度或entry的整型值
+     * 解析结果放在isInteger, longValue, offset, length中
      */
-    private Integer[] decodeEntrySpecialFlag() {
-        byte[] buf = new byte[9];
-        int flagLen=1;
-        int entryLen=0;
-        Integer intValue = null;
-
-		for (int i = 0; i < buf.length && ((index + i) < ziplistByte.length); i++) {
-			buf[i] = ziplistByte[index + i];
-		}
-        int type = (buf[0] & 0x00C0) >> 6;
+    private void decodeEntrySpecialFlag() {
+        int b = array[index] & 0x00ff;
+        int type = (b & 0x00C0) >> 6;
+        isInteger = false;
+        length = 0;
         if (type == ZIPLIST_ENTRY_FLAG_6BITLEN) {
 			/* Read a 6 bit len */
-        	flagLen = 1 ;
-        	entryLen = (buf[0] & 0x003F);
+			length = b & 0x003F;
+			offset = index + 1;
 		} else if (type == ZIPLIST_ENTRY_FLAG_14BITLEN) {
-			/* Read a 14 bit len */
-			flagLen = 2 ;
-        	entryLen = ((buf[0] & 0x003F) << 8) | (buf[1] & 0x00ff);
+			/* Read a 14 bit len, big endian */
+			length = ((b & 0x003F) << 8) | (array[index + 1] & 0x00ff);
+			offset = index + 2;
 		} else if (type == ZIPLIST_ENTRY_FLAG_5BYTELEN) {
-			/* Read a 5 byte len */
-			flagLen = 5;
-			entryLen = ((buf[4] & 0x00ff) << 32) + ((buf[3] & 0x00ff) << 24)
-					+ ((buf[2] & 0x00ff) << 16) + ((buf[1] & 0x00ff) << 8)
-					+ ((buf[0] & 0x003F));
-		} else { // buf[0] == 11xx xxxx
-			type = (buf[0] & 0x00f0) >> 4;
+			/* Read a 4 byte len, big endian, 第一个字节的低6位不使用 */
+			long len = ((long) (array[index + 1] & 0x00ff) << 24)
+					| ((array[index + 2] & 0x00ff) << 16)
+					| ((array[index + 3] & 0x00ff) << 8)
+					| (array[index + 4] & 0x00ff);
+			if (len > array.length) {
+				ERROR("Ziplist entry length %d out of range", len);
+			}
+			length = (int) len;
+			offset = index + 5;
+		} else { // b == 11xx xxxx
+			isInteger = true;
+			offset = index + 1;
+			type = (b & 0x00f0) >> 4;
 			if (type == ZIPLIST_ENTRY_FLAG_N2BYTEVLAUE) {
 				/* Read next 2 byte integer value */
-				flagLen = 1;
-				entryLen = 2;
-				intValue = ((buf[2] & 0x00ff) << 8) + ((buf[1] & 0x00ff));
+				longValue = readLE(offset, 2);
+				offset += 2;
 			} else if (type == ZIPLIST_ENTRY_FLAG_N4BYTEVLAUE) {
 				/* Read next 4 byte integer value */
-				flagLen = 1;
-				entryLen = 4;
-				intValue = ((buf[4] & 0x00ff) << 24)
-						+ ((buf[3] & 0x00ff) << 16) + ((buf[2] & 0x00ff) << 8)
-						+ ((buf[1] & 0x00ff));
+				longValue = readLE(offset, 4);
+				offset += 4;
 			} else if (type == ZIPLIST_ENTRY_FLAG_N8BYTEVLAUE) {
 				/* Read next 8 byte integer value */
-				flagLen = 1;
-				entryLen = 8;
-				intValue = ((buf[8] & 0x00ff) << 56)
-						+ ((buf[7] & 0x00ff) << 48) + ((buf[6] & 0x00ff) << 40)
-						+ ((buf[5] & 0x00ff) << 32) + ((buf[4] & 0x00ff) << 24)
-						+ ((buf[3] & 0x00ff) << 16) + ((buf[2] & 0x00ff) << 8)
-						+ ((buf[1] & 0x00ff));
-			} else { // buf[0] == 1111 xxxx
-				type = (buf[0] & 0x000f);
+				longValue = readLE(offset, 8);
+				offset += 8;
+			} else { // b == 1111 xxxx
+				type = (b & 0x000f);
 				if (type == ZIPLIST_ENTRY_FLAG_N1BYTEVLAUE) {
         			/* Read next 1 byte integer value */
-					flagLen = 1 ;
-					entryLen = 1;
-					intValue = (0x00ff & buf[1]);
+					longValue = readLE(offset, 1);
+					offset += 1;
 				} else if (type == ZIPLIST_ENTRY_FLAG_N3BYTEVLAUE) {
 					/* Read next 3 byte integer value */
-					flagLen = 1;
-					entryLen = 3;
-					intValue = ((buf[3] & 0x00ff) << 16) + ((buf[2] & 0x00ff) << 8)
-							+ ((buf[1] & 0x00ff));
+					longValue = readLE(offset, 3);
+					offset += 3;
 				} else if (type > ZIPLIST_ENTRY_FLAG_N3BYTEVLAUE && type < ZIPLIST_ENTRY_FLAG_N1BYTEVLAUE) { // 0 < type < 14
 					/* Read immediate 4 bit integer value */
-					flagLen = 1;
-					entryLen = 0;
-					intValue = type - 1;
-				} else { // buf[0] == 1111 1111
-					ERROR(" Unknown entry special flag encoding (0x%02x) ");
+					longValue = type - 1;
+				} else { // b == 1111 1111
+					ERROR("Unknown entry special flag encoding (0x%02x)", b);
 				}
 			}
 		}
-        // 解析完special flag后, index往下移
-        index = index + flagLen;
-        return new Integer[]{entryLen, intValue};
-    }
-
-    static byte[] subbyte(byte[] buf, int start, int len){
-    	byte[] value = new byte[len];
-    	for (int i=0; i<len; start++,i++) {
-			value[i] = buf[start];
-		}
-    	return value;
-    }
-
-	static String byteToString(byte[] buf) {
-		try {
-			return new String(buf, "ASCII");
-		} catch (UnsupportedEncodingException e) {
-			return new String(buf);
-		}
-	}
-
-    static void ERROR(String msg, Object... args) {
-        throw new RuntimeException(String.format(msg, args));
     }
 
 }
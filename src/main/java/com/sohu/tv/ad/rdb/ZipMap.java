@@ -10,6 +10,7 @@ import java.util.HashMap;
 /**
  * 
  * 解析ZipMap类型数据
+ * 以游标的方式遍历: 每次next()之后, field和value通过offset/length直接引用zipmap的byte数组, 不复制数据
 *  @author Wang GangHua
  * @version 1.0.0 2013-11-30
  *
@@ -19,6 +20,71 @@ public class ZipMap {
     public static final int ZIPMAP_END=255;	//zipMap结束符
     public static final int ZIPMAP_VALUE_MAX_FREE=4;
 
+    private final byte[] zm;	//zipMap数据
+    private int pos = 1;	//byte数组下标, 跳过第1个字节的元素个数
+
+    /* 当前的field和value, next()之后有效 */
+    private int keyOffset;
+    private int keyLength;
+    private int valueOffset;
+    private int valueLength;
+
+    public ZipMap(byte[] zm) {
+        if (zm.length < 2) {
+            ERROR("Zipmap too short (%d bytes)", zm.length);
+        }
+        this.zm = zm;
+    }
+
+    /* 元素个数, 大于等于254时需要遍历才能得到, 返回-1 */
+    public int size() {
+        int len = zm[0] & 0x00ff;
+        return len < ZIPMAP_BIGLEN ? len : -1;
+    }
+
+    /**
+     * 游标移动到下一对field和value, value后面的free字节直接跳过
+     * @return 已经到达zipmap结束符时返回false
+     */
+    public boolean next() {
+        if (pos >= zm.length || (0x00ff & zm[pos]) == ZIPMAP_END) {
+            return false;
+        }
+        keyLength = zipmapDecodeLength(zm, pos);
+        keyOffset = pos + decodeFlagLen(zm[pos] & 0x00ff);
+        pos = keyOffset + keyLength;
+        valueLength = zipmapDecodeLength(zm, pos);
+        pos += decodeFlagLen(zm[pos] & 0x00ff);
+        int free = (0x00ff & zm[pos]);
+        valueOffset = pos + 1;
+        pos = valueOffset + valueLength + free;
+        if (pos > zm.length) {
+            ERROR("Zipmap entry out of range");
+        }
+        return true;
+    }
+
+    public int getKeyOffset() {
+        return keyOffset;
+    }
+
+    public int getKeyLength() {
+        return keyLength;
+    }
+
+    public int getValueOffset() {
+        return valueOffset;
+    }
+
+    public int getValueLength() {
+        return valueLength;
+    }
+
+    /* zipMap的byte数组 */
+    public byte[] getArray() {
+        return zm;
+    }
+
     /* 
 	 * 占1或5个字节
 	 * 如果第一个字节整型值等于254,则后面的4个字节表示长度,否则第一个字节整型值就是长度
@@ -42,13 +108,22 @@ public class ZipMap {
 	  * zipMap占用的字节数
 	  * */
 	static int zipmapDecodeLength(byte[] p, int start) {
-		int len = p[start];
+		if (start >= p.length) {
+			ERROR("Zipmap entry out of range");
+		}
+		int len = p[start] & 0x00ff;
 		if (len < ZIPMAP_BIGLEN) {
 			return len;
 		}
-		len = ((p[start + 4] & 0x00ff) << 24) + ((p[start + 3] & 0x00ff) << 16)
+		if (start + 5 > p.length) {
+			ERROR("Zipmap entry out of range");
+		}
+		long biglen = ((long) (p[start + 4] & 0x00ff) << 24) + ((p[start + 3] & 0x00ff) << 16)
 				+ ((p[start + 2] & 0x00ff) << 8) + ((p[start + 1] & 0x00ff));
-		return len;
+		if (biglen > p.length) {
+			ERROR("Zipmap entry length %d out of range", biglen);
+		}
+		return (int) biglen;
 	}
     
 	static int zipmapEncodeLength(byte[] p, int len) {
@@ -61,9 +136,9 @@ public class ZipMap {
 			} else {
 				p[0] = (byte) ZIPMAP_BIGLEN;
 				p[1] = (byte) (0x00ff & len);
-				p[2] = (byte) ((0x00ff & len) >> 8);
-				p[3] = (byte) ((0x00ff & len) >> 16);
-				p[4] = (byte) ((0x00ff & len) >> 24);
+				p[2] = (byte) (0x00ff & (len >> 8));
+				p[3] = (byte) (0x00ff & (len >> 16));
+				p[4] = (byte) (0x00ff & (len >> 24));
 				return 1 + 4;
 			}
 		}
@@ -73,27 +148,37 @@ public class ZipMap {
      *  byte数组转为返回的HashMap
      * */
 	public static HashMap<String, String> zipmapExpand(byte[] zm) {
-		byte[] p = zm;
-		int l, llen;
-
-		int pos = 1;
-		HashMap<String, String> res = new HashMap<String, String>();
-		while ((0x00ff & p[pos]) != ZIPMAP_END) {
-			int free;
-			l = zipmapDecodeLength(p, pos);
-			llen = zipmapEncodeLength(null, l);
-			pos += llen;
-			String key = new String(zm, pos, l);
-			pos += l;
-			l = zipmapDecodeLength(p, pos);
-			pos += zipmapEncodeLength(null, l);
-			free = (0x00ff & p[pos]);
-			pos += 1;
-			String value = new String(zm, pos, l);
-			pos += l;
-			pos += free;
+		ZipMap zipMap = new ZipMap(zm);
+		HashMap<String, String> res = new HashMap<String, String>(capacity(zipMap));
+		while (zipMap.next()) {
+			String key = new String(zm, zipMap.keyOffset, zipMap.keyLength, ParseRDB.CHARSET);
+			String value = new String(zm, zipMap.valueOffset, zipMap.valueLength, ParseRDB.CHARSET);
 			res.put(key, value);
 		}
 		return res;
 	}
+
+	/*
+	 * byte数组转为HashMap, field和value都保持为ByteString, 直接引用zm中的数据, 不做字符集转换
+	 * */
+	public static HashMap<ByteString, ByteString> zipmapExpandBytes(byte[] zm) {
+		ZipMap zipMap = new ZipMap(zm);
+		HashMap<ByteString, ByteString> res = new HashMap<ByteString, ByteString>(capacity(zipMap));
+		while (zipMap.next()) {
+			ByteString key = new ByteString(zm, zipMap.keyOffset, zipMap.keyLength);
+			ByteString value = new ByteString(zm, zipMap.valueOffset, zipMap.valueLength);
+			res.put(key, value);
+		}
+		return res;
+	}
+
+	/* 按元素个数预设HashMap的容量, 避免扩容 */
+	private static int capacity(ZipMap zipMap) {
+		int n = zipMap.size();
+		return n < 0 ? 16 : n * 4 / 3 + 1;
+	}
+
+    static void ERROR(String msg, Object... args) {
+        throw new RuntimeException(String.format(msg, args));
+    }
 }
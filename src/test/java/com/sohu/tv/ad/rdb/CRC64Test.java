@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CRC64的标准测试向量: crc64("123456789") = 0xe9c6d914c4b8d9ca
+ * 分别通过逐字节, byte数组, heap buffer和direct buffer计算
+ * 用法: CRC64Test, 不一致时抛出异常
+ */
+public class CRC64Test {
+
+    private static final long EXPECTED = 0xe9c6d914c4b8d9caL;
+
+    public static void main(String[] args) {
+        byte[] data = "123456789".getBytes();
+        CRC64 crc = new CRC64();
+        crc.update(data, 0, data.length);
+        check(crc.getValue(), "array");
+
+        crc.reset();
+        for (byte b : data) {
+            crc.update(b);
+        }
+        check(crc.getValue(), "byte");
+
+        /* 按8字节处理的路径: 前面放不对齐的字节, 后面跟着不足8字节的尾部 */
+        byte[] padded = new byte[data.length + 3];
+        System.arraycopy(data, 0, padded, 3, data.length);
+        crc.reset();
+        crc.update(padded, 3, data.length);
+        check(crc.getValue(), "unaligned array");
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(padded.length);
+        direct.put(padded);
+        crc.reset();
+        crc.update(direct, 3, padded.length);
+        check(crc.getValue(), "direct");
+
+        crc.reset();
+        crc.update(ByteBuffer.wrap(padded), 3, padded.length);
+        check(crc.getValue(), "heap");
+        System.out.println("OK");
+    }
+
+    private static void check(long actual, String name) {
+        if (actual != EXPECTED) {
+            throw new IllegalStateException(String.format("%s crc64 is %016x, expected %016x",
+                    name, actual, EXPECTED));
+        }
+    }
+}
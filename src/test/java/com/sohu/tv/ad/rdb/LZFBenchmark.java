@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LZF解压的性能对比: 原来逐字节复制back-reference的expand和现在的批量复制版本,
+ * 以及多线程压缩时的吞吐量(每个线程使用自己的LZFCompress实例)
+ * 用法: LZFBenchmark [字符串长度] [轮数] [压缩线程数]
+ *
+ */
+public class LZFBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int threads = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+
+        /* 模拟业务数据: 重复的单词, 数字和连续相同的字节 */
+        Random random = new Random(42);
+        String[] words = { "ad", "user", "click", "impression", "campaign", "tv.sohu.com", "," };
+        byte[] data = new byte[size];
+        for (int pos = 0; pos < size;) {
+            byte[] w;
+            int r = random.nextInt(10);
+            if (r == 0) {
+                w = new byte[8 + random.nextInt(64)];
+                Arrays.fill(w, (byte) ' ');
+            } else if (r < 3) {
+                w = String.valueOf(random.nextInt(100000)).getBytes();
+            } else {
+                w = words[random.nextInt(words.length)].getBytes();
+            }
+            int n = Math.min(w.length, size - pos);
+            System.arraycopy(w, 0, data, pos, n);
+            pos += n;
+        }
+        byte[] compressed = new byte[LZFCompress.maxCompressedLength(size)];
+        int clen = LZFCompress.compress(data, size, compressed, 0);
+
+        byte[] out = new byte[size];
+        ByteBuffer direct = ByteBuffer.allocateDirect(size);
+        expandLoop(compressed, 0, clen, out, 0, size);
+        check(data, out, "loop");
+        LZFCompress.expand(compressed, 0, clen, out, 0, size);
+        check(data, out, "bulk");
+        LZFCompress.expand(compressed, 0, clen, direct, size);
+        direct.flip();
+        direct.get(out);
+        check(data, out, "direct");
+
+        long total = 256L * 1024 * 1024;
+        int iterations = (int) Math.max(1, total / size);
+        System.out.println("size: " + size + ", compressed: " + clen + ", iterations: " + iterations);
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                expandLoop(compressed, 0, clen, out, 0, size);
+            }
+            long loop = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                LZFCompress.expand(compressed, 0, clen, out, 0, size);
+            }
+            long bulk = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                direct.clear();
+                LZFCompress.expand(compressed, 0, clen, direct, size);
+            }
+            long dir = System.nanoTime() - start;
+
+            System.out.println("round " + round + ": loop " + mbps(iterations, size, loop)
+                    + " MB/s, bulk " + mbps(iterations, size, bulk)
+                    + " MB/s, direct " + mbps(iterations, size, dir) + " MB/s");
+        }
+
+        for (int n = 1; n <= threads; n *= 2) {
+            System.out.println("compress, " + n + " threads: " + compress(data, iterations, n) + " MB/s");
+        }
+    }
+
+    /* n个线程同时压缩, 每个线程压缩iterations次, 返回总的吞吐量 */
+    private static long compress(final byte[] data, final int iterations, int n)
+            throws InterruptedException {
+        final AtomicLong failed = new AtomicLong();
+        Thread[] workers = new Thread[n];
+        for (int t = 0; t < n; t++) {
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    LZFCompress lzf = new LZFCompress();
+                    byte[] out = new byte[LZFCompress.maxCompressedLength(data.length)];
+                    byte[] check = new byte[data.length];
+                    for (int i = 0; i < iterations; i++) {
+                        int clen = lzf.compress(data, 0, data.length, out, 0);
+                        if (i == 0) {
+                            LZFCompress.expand(out, 0, clen, check, 0, check.length);
+                            if (!Arrays.equals(data, check)) {
+                                failed.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread w : workers) {
+            w.start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        long nanos = System.nanoTime() - start;
+        if (failed.get() > 0) {
+            throw new IllegalStateException("compress result is wrong");
+        }
+        return mbps(iterations * n, data.length, nanos);
+    }
+
+    private static long mbps(int iterations, int size, long nanos) {
+        return (long) ((double) iterations * size / (1024 * 1024) / (nanos / 1e9));
+    }
+
+    private static void check(byte[] expected, byte[] actual, String name) {
+        if (!Arrays.equals(expected, actual)) {
+            throw new IllegalStateException(name + " expand result is wrong");
+        }
+    }
+
+    /* 原来的expand实现, back-reference逐字节复制 */
+    private static void expandLoop(byte[] in, int inPos, int inLen, byte[] out, int outPos, int outLen) {
+        do {
+            int ctrl = in[inPos++] & 255;
+            if (ctrl < 32) {
+                ctrl++;
+                System.arraycopy(in, inPos, out, outPos, ctrl);
+                outPos += ctrl;
+                inPos += ctrl;
+            } else {
+                int len = ctrl >> 5;
+                if (len == 7) {
+                    len += in[inPos++] & 255;
+                }
+                len += 2;
+                ctrl = -((ctrl & 0x1f) << 8) - 1;
+                ctrl -= in[inPos++] & 255;
+                ctrl += outPos;
+                if (outPos + len > outLen) {
+                    throw new ArrayIndexOutOfBoundsException();
+                }
+                for (int i = 0; i < len; i++) {
+                    out[outPos++] = out[ctrl++];
+                }
+            }
+        } while (outPos < outLen);
+    }
+}
@@ -5,6 +5,7 @@
 package com.sohu.tv.ad.rdb;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.sohu.tv.ad.rdb.ParseRDB.Entry;
@@ -21,14 +22,22 @@ public class ParseRDBTest {
     	final AtomicInteger count = new AtomicInteger();
         String filePath = "redis/dumpdir/dump.rdb";
         
+        /* 统计解析过程中每个entry平均分配的内存 */
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        
         ParseRDB rdb = new ParseRDB();
         rdb.init(new File(filePath));
+        long allocated = mx.getThreadAllocatedBytes(tid);
         Entry entry = rdb.next();
         
         while(entry!=null){
         	count.incrementAndGet();
             entry = rdb.next();
         }
+        allocated = mx.getThreadAllocatedBytes(tid) - allocated;
         rdb.close();
+        System.out.println("entries : " + count.get() + ", allocated bytes per entry : "
+                + (count.get() == 0 ? 0 : allocated / count.get()));
     }
 }
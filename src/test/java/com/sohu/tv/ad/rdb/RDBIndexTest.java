@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * RDBIndex的查找测试: 用RDBWriter写出多个数据库中的key(包括会被LZF压缩的非ASCII key),
+ * 建立索引后按String和原始字节分别查找; 数据库编号超出范围时建立索引失败
+ * 用法: RDBIndexTest [临时目录], 不一致时抛出异常
+ */
+public class RDBIndexTest {
+
+    private static final String UTF8_KEY = "中文键中文键中文键中文键";
+
+    public static void main(String[] args) throws IOException {
+        File dir = args.length > 0 ? new File(args[0]) : new File(System.getProperty("java.io.tmpdir"));
+        File rdb = new File(dir, "index-test.rdb");
+        File index = RDBIndex.indexFile(rdb);
+        try {
+            write(rdb);
+            RDBIndex.build(rdb);
+            RDBIndex idx = RDBIndex.open(rdb);
+            try {
+                check(idx.size() == 1004, "size is " + idx.size());
+                for (int i = 0; i < 1000; i++) {
+                    ParseRDB.Entry entry = idx.get("key:" + i);
+                    check(entry != null && ("value:" + i).equals(entry.value), "key:" + i);
+                }
+                /* key经过LZF压缩, 按String查找时转换为和文件中相同的字节 */
+                ParseRDB.Entry entry = idx.get(0, UTF8_KEY);
+                check(entry != null && UTF8_KEY.equals(entry.key) && "db0".equals(entry.value), "utf8 key in db 0");
+                entry = idx.get(5, UTF8_KEY);
+                check(entry != null && entry.db == 5 && "db5".equals(entry.value), "utf8 key in db 5");
+                entry = idx.get(UTF8_KEY);
+                check(entry != null, "utf8 key in any db");
+
+                /* 按字节查找时返回binary模式的entry */
+                entry = idx.get(5, UTF8_KEY.getBytes(ParseRDB.CHARSET));
+                check(entry != null && Arrays.equals(UTF8_KEY.getBytes(ParseRDB.CHARSET), entry.keyBytes)
+                        && Arrays.equals("db5".getBytes(), (byte[]) entry.value), "binary utf8 key");
+
+                entry = idx.get(0, "hash");
+                check(entry != null && "v".equals(((Map<?, ?>) entry.value).get("中文字段")), "hash");
+
+                check(idx.get("missing") == null, "missing key");
+                check(idx.get(1, UTF8_KEY) == null, "utf8 key in db 1");
+            } finally {
+                idx.close();
+            }
+
+            /* 数据库编号超出范围时建立索引失败, 不会截断成别的数据库 */
+            FileOutputStream out = new FileOutputStream(rdb);
+            out.write(new byte[] { 'R', 'E', 'D', 'I', 'S', '0', '0', '0', '6', (byte) 0xfe, 0x40, 0x40,
+                    0, 1, 'k', 1, 'v', (byte) 0xff, 0, 0, 0, 0, 0, 0, 0, 0 });
+            out.close();
+            String error = null;
+            try {
+                RDBIndex.build(rdb);
+            } catch (RuntimeException e) {
+                error = e.getMessage();
+            }
+            check(error != null && error.startsWith("Database number out of range"), "database 64");
+        } finally {
+            rdb.delete();
+            index.delete();
+        }
+        System.out.println("OK");
+    }
+
+    private static void write(File rdb) {
+        RDBWriter writer = new RDBWriter(rdb);
+        for (int i = 0; i < 1000; i++) {
+            writer.write(0, "key:" + i, "value:" + i, 0);
+        }
+        writer.write(0, UTF8_KEY, "db0", 0);
+        Map<String, String> hash = new HashMap<String, String>();
+        hash.put("中文字段", "v");
+        writer.write(0, "hash", hash, 0);
+        writer.write(5, UTF8_KEY, "db5", 0);
+        writer.write(5, "other", "x", 0);
+        writer.close();
+    }
+
+    private static void check(boolean ok, String name) {
+        if (!ok) {
+            throw new IllegalStateException(name + " is wrong");
+        }
+    }
+}
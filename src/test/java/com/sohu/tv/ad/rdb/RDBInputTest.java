@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 读取方式的对比测试: 用每一种读取方式解析同一个文件, 结果应该和FileChannel读取的完全一致,
+ * 每种方式再用VALUE_LAZY解析一遍, Entry.getValue()的结果也应该一致
+ * 内存映射使用4K的小窗口时, 大部分value都会跨窗口读取; gzip模式先把文件压缩到临时文件
+ * 用法: RDBInputTest [dump.rdb], 不一致时抛出异常
+ */
+public class RDBInputTest {
+
+    private static final String[] MODES = { "channel", "mapped", "mapped 4K window", "prefetch",
+            "InputStream", "ReadableByteChannel", "gzip", "byte array" };
+
+    public static void main(String[] args) throws Exception {
+        File file = new File(args.length > 0 ? args[0] : "redis/dumpdir/dump.rdb");
+        List<String> expected = read(file, 0, ParseRDB.VALUE_DECODE);
+        for (int mode = 0; mode < MODES.length; mode++) {
+            if (mode > 0) {
+                check(expected, read(file, mode, ParseRDB.VALUE_DECODE), MODES[mode]);
+            }
+            check(expected, read(file, mode, ParseRDB.VALUE_LAZY), MODES[mode] + " lazy");
+        }
+        System.out.println("entries : " + expected.size() + ", OK");
+    }
+
+    private static List<String> read(File file, int mode, int valueMode) throws Exception {
+        ParseRDB rdb = new ParseRDB();
+        rdb.setValueMode(valueMode);
+        switch (mode) {
+            case 0:
+                rdb.init(file);
+                break;
+            case 1:
+                rdb.initMapped(file);
+                break;
+            case 2:
+                rdb.initMapped(file, 4096);
+                break;
+            case 3:
+                /* 小缓冲区, 后台线程和解析线程频繁交替 */
+                rdb.initPrefetch(file, 4096, 2);
+                break;
+            case 4:
+                rdb.init(new FileInputStream(file));
+                break;
+            case 5:
+                rdb.init(Channels.newChannel(new FileInputStream(file)));
+                break;
+            case 6:
+                rdb.initGzip(new FileInputStream(gzip(file)));
+                break;
+            default:
+                rdb.init(new ArrayRDBInput(Files.readAllBytes(file.toPath())));
+                break;
+        }
+        List<String> entries = new ArrayList<String>();
+        try {
+            ParseRDB.Entry entry;
+            while ((entry = rdb.next()) != null) {
+                entries.add(entry.type + " " + entry.key + " " + entry.expire + " " + normalize(entry.getValue()));
+            }
+        } finally {
+            rdb.close();
+        }
+        return entries;
+    }
+
+    /* 把value转换为和集合顺序无关的字符串 */
+    private static String normalize(Object value) {
+        if (value instanceof Set) {
+            List<String> items = new ArrayList<String>();
+            for (Object o : (Set<?>) value) {
+                items.add(String.valueOf(o));
+            }
+            Collections.sort(items);
+            return items.toString();
+        } else if (value instanceof Map) {
+            Map<String, String> fields = new TreeMap<String, String>();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                fields.put(String.valueOf(e.getKey()), String.valueOf(e.getValue()));
+            }
+            return fields.toString();
+        }
+        return String.valueOf(value);
+    }
+
+    /* 压缩到临时文件, 退出时删除 */
+    private static File gzip(File file) throws IOException {
+        File gz = File.createTempFile(file.getName() + ".", ".gz");
+        gz.deleteOnExit();
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(gz));
+        try {
+            out.write(Files.readAllBytes(file.toPath()));
+        } finally {
+            out.close();
+        }
+        return gz;
+    }
+
+    private static void check(List<String> expected, List<String> actual, String name) {
+        if (expected.size() != actual.size()) {
+            throw new IllegalStateException(name + ": " + actual.size() + " entries, expected " + expected.size());
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            if (!expected.get(i).equals(actual.get(i))) {
+                throw new IllegalStateException(name + ": entry " + i + " is wrong");
+            }
+        }
+    }
+}
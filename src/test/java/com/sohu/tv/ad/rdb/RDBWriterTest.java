@@ -0,0 +1,233 @@
+/**
+ * Copyright (c) 2013 Sohu TV
+ * All rights reserved.
+ */
+package com.sohu.tv.ad.rdb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * RDBWriter和ParseRDB的往返测试: 用RDBWriter写出各种编码的key(整数和LZF字符串, 非ASCII字符串, 比写缓冲区大的value,
+ * ziplist和普通list, intset和普通set, ziplist和普通hash(包括按编码后的字节数超过ziplist限制的非ASCII元素), ziplist和skiplist的zset, 过期时间, 多个数据库),
+ * 再用ParseRDB读回来比较, 并校验文件末尾的CRC64; 然后把VALUE_LAZY读到的entry按版本11原样写出再比较一次,
+ * 最后用VALUE_TRANSFER再复制一次(跳过一个key)
+ * 用法: RDBWriterTest [临时目录], 不一致时抛出异常
+ */
+public class RDBWriterTest {
+
+    public static void main(String[] args) throws Exception {
+        File dir = args.length > 0 ? new File(args[0]) : new File(System.getProperty("java.io.tmpdir"));
+        File rdb = File.createTempFile("writer", ".rdb", dir);
+        File copy = new File(rdb.getPath() + ".v11");
+        File transfer = new File(rdb.getPath() + ".transfer");
+        try {
+            Map<String, String> expected = write(rdb);
+            if (!ParseRDB.verifyChecksum(rdb)) {
+                throw new IllegalStateException("checksum of written file is wrong");
+            }
+            check(expected, read(rdb), "written file");
+            checkType(rdb, "ziphash", ParseRDB.REDIS_HASH_ZIPLIST);
+            checkType(rdb, "utf8hash", ParseRDB.REDIS_HASH);
+
+            /* VALUE_LAZY读到的entry按版本11写出, 所有类型都直接复制原始编码 */
+            ParseRDB parser = new ParseRDB();
+            parser.setValueMode(ParseRDB.VALUE_LAZY);
+            parser.init(rdb);
+            RDBWriter writer = new RDBWriter(copy);
+            writer.setVersion(11);
+            ParseRDB.Entry entry;
+            while ((entry = parser.next()) != null) {
+                writer.write(entry);
+            }
+            writer.close();
+            parser.close();
+            if (!ParseRDB.verifyChecksum(copy)) {
+                throw new IllegalStateException("checksum of copied file is wrong");
+            }
+            check(expected, read(copy), "version 11 copy");
+
+            /* VALUE_TRANSFER模式下value直接从输入复制到输出, 没有写出的key在下一次next()时跳过 */
+            parser = new ParseRDB();
+            parser.setValueMode(ParseRDB.VALUE_TRANSFER);
+            parser.init(copy);
+            writer = new RDBWriter(transfer);
+            writer.setVersion(11);
+            while ((entry = parser.next()) != null) {
+                if (!entry.getKey().equals("big")) {
+                    writer.write(entry, parser);
+                }
+            }
+            writer.close();
+            parser.close();
+            if (!ParseRDB.verifyChecksum(transfer)) {
+                throw new IllegalStateException("checksum of transferred file is wrong");
+            }
+            expected.remove("big");
+            check(expected, read(transfer), "transferred copy");
+        } finally {
+            rdb.delete();
+            copy.delete();
+            transfer.delete();
+        }
+        System.out.println("OK");
+    }
+
+    /* 写出覆盖各种编码的key, 返回key到期望内容的映射 */
+    private static Map<String, String> write(File rdb) {
+        Map<String, String> expected = new LinkedHashMap<String, String>();
+        RDBWriter writer = new RDBWriter(rdb);
+        char[] big = new char[3 * 1024 * 1024];
+        Arrays.fill(big, 'x');
+        put(writer, expected, 0, "str", "value", 0);
+        put(writer, expected, 0, "int", "-12345", 0);
+        put(writer, expected, 0, "long", "12345678901234", 1700000000123L);
+        put(writer, expected, 0, "lzf", "abcabcabcabcabcabcabcabcabcabcabcabc", 0);
+        /* 非ASCII的key和value, 编码后超过20字节, 会被LZF压缩 */
+        put(writer, expected, 0, "中文键中文键中文键中文键", "中文值中文值中文值中文值中文值中文值", 0);
+        /* 比写缓冲区还大的value */
+        put(writer, expected, 0, "big", new String(big), 0);
+
+        List<Object> list = new ArrayList<Object>();
+        for (int i = 0; i < 10; i++) {
+            list.add(i % 2 == 0 ? "item" + i : Long.valueOf(i * 1000000L));
+        }
+        put(writer, expected, 1, "ziplist", list, 0);
+        List<Object> longList = new ArrayList<Object>();
+        for (int i = 0; i < 1000; i++) {
+            longList.add("element-" + i);
+        }
+        put(writer, expected, 1, "list", longList, 1800000000000L);
+
+        Set<Object> intset = new HashSet<Object>(Arrays.asList("1", "-70000", "5000000000"));
+        put(writer, expected, 2, "intset", intset, 0);
+        Set<Object> set = new HashSet<Object>(Arrays.asList("a", "b", "3"));
+        put(writer, expected, 2, "set", set, 0);
+
+        Map<Object, Object> hash = new HashMap<Object, Object>();
+        hash.put("f1", "v1");
+        hash.put("f2", "2");
+        put(writer, expected, 3, "ziphash", hash, 0);
+        Map<Object, Object> bigHash = new HashMap<Object, Object>(hash);
+        bigHash.put("long", new String(big, 0, 100));
+        put(writer, expected, 3, "hash", bigHash, 0);
+        /* 30个字符, 但UTF-8编码后90字节, 超过了ziplist元素的长度限制 */
+        Map<Object, Object> utf8Hash = new HashMap<Object, Object>(hash);
+        utf8Hash.put("utf8", "中文值中文值中文值中文值中文值中文值中文值中文值中文值中文值");
+        put(writer, expected, 3, "utf8hash", utf8Hash, 0);
+
+        ZSet zset = new ZSet();
+        zset.add("m1", 1.5);
+        zset.add("m2", -3);
+        zset.add("inf", Double.POSITIVE_INFINITY);
+        zset.add("ninf", Double.NEGATIVE_INFINITY);
+        zset.sort();
+        put(writer, expected, 4, "zipzset", zset, 0);
+        ZSet bigZSet = new ZSet();
+        for (int i = 0; i < 200; i++) {
+            bigZSet.add("member-" + i, i * 0.25);
+        }
+        bigZSet.sort();
+        put(writer, expected, 4, "zset", bigZSet, 0);
+        writer.close();
+        return expected;
+    }
+
+    private static void put(RDBWriter writer, Map<String, String> expected, int db, String key,
+            Object value, long expireMs) {
+        writer.write(db, key, value, expireMs);
+        expected.put(key, db + " " + expireMs + " " + normalize(value));
+    }
+
+    /* 把value转换为和编码, 元素类型以及集合顺序无关的字符串 */
+    private static String normalize(Object value) {
+        if (value instanceof List) {
+            List<String> items = new ArrayList<String>();
+            for (Object o : (List<?>) value) {
+                items.add(o.toString());
+            }
+            return items.toString();
+        } else if (value instanceof Set) {
+            List<String> items = new ArrayList<String>();
+            for (Object o : (Set<?>) value) {
+                items.add(o.toString());
+            }
+            Collections.sort(items);
+            return items.toString();
+        } else if (value instanceof IntSet) {
+            List<String> items = new ArrayList<String>();
+            for (long v : ((IntSet) value).toArray()) {
+                items.add(String.valueOf(v));
+            }
+            Collections.sort(items);
+            return items.toString();
+        } else if (value instanceof Map) {
+            Map<String, String> fields = new TreeMap<String, String>();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                fields.put(e.getKey().toString(), e.getValue().toString());
+            }
+            return fields.toString();
+        } else if (value instanceof byte[]) {
+            return new String((byte[]) value, ParseRDB.CHARSET);
+        }
+        return String.valueOf(value);
+    }
+
+    private static Map<String, String> read(File rdb) {
+        ParseRDB parser = new ParseRDB();
+        parser.init(rdb);
+        Map<String, String> actual = new LinkedHashMap<String, String>();
+        try {
+            ParseRDB.Entry entry;
+            while ((entry = parser.next()) != null) {
+                actual.put(entry.getKey(), entry.db + " " + entry.expire + " " + normalize(entry.getValue()));
+            }
+        } finally {
+            parser.close();
+        }
+        return actual;
+    }
+
+    /* 检查key在文件中的编码 */
+    private static void checkType(File rdb, String key, int type) {
+        ParseRDB parser = new ParseRDB();
+        parser.setValueMode(ParseRDB.VALUE_SKIP);
+        parser.init(rdb);
+        try {
+            ParseRDB.Entry entry;
+            while ((entry = parser.next()) != null) {
+                if (key.equals(entry.getKey())) {
+                    if (entry.type != type) {
+                        throw new IllegalStateException("type of " + key + " is " + entry.type
+                                + ", expected " + type);
+                    }
+                    return;
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        throw new IllegalStateException(key + " not found");
+    }
+
+    private static void check(Map<String, String> expected, Map<String, String> actual, String name) {
+        if (!expected.keySet().equals(actual.keySet())) {
+            throw new IllegalStateException(name + ": keys are " + actual.keySet()
+                    + ", expected " + expected.keySet());
+        }
+        for (Map.Entry<String, String> e : expected.entrySet()) {
+            if (!e.getValue().equals(actual.get(e.getKey()))) {
+                throw new IllegalStateException(name + ": value of " + e.getKey() + " is wrong");
+            }
+        }
+    }
+}